@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost per file of decompressing small sprites, where setting up
+ * the decoder for each file rivals decoding the file itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DecoderSetupBenchmark {
+	/** The width and height of the sprites */
+	@Param({ "16", "32", "64" })
+	public int size;
+
+	private byte[] xnb;
+	private ByteBuffer input;
+	private ByteBuffer paddedInput;
+	private ByteBuffer output;
+
+	@Setup
+	public void setup() {
+		byte[] data = LzxDecoderTest.texture(size, size, 1);
+		xnb = new LzxEncoder().xnb(data);
+		input = ByteBuffer.wrap(xnb).order(ByteOrder.LITTLE_ENDIAN);
+		// The old decoder reads ahead of the end of the data
+		paddedInput = ByteBuffer.allocate(xnb.length + 8).put(xnb);
+		output = ByteBuffer.allocate(data.length);
+	}
+
+	/** The decoder of the thread, which extractions reuse from file to file */
+	@Benchmark
+	public ByteBuffer cached() {
+		return decompressFrames(DecoderCache.get().decoder());
+	}
+
+	@Benchmark
+	public ByteBuffer fresh() {
+		return decompressFrames(new LzxDecoder());
+	}
+
+	@Benchmark
+	public ByteBuffer baseline() {
+		paddedInput.position(14);
+		output.clear();
+		new BaselineLzxDecoder().decompress(paddedInput, xnb.length - 14, output, output.capacity());
+		return output;
+	}
+
+	private ByteBuffer decompressFrames(LzxDecoder decoder) {
+		input.position(14);
+		output.clear();
+		decoder.start(input, xnb.length - 14);
+		while (decoder.decompressFrame(output) != -1) {
+		}
+		return output;
+	}
+}
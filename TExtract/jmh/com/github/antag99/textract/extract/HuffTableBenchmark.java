@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.antag99.textract.extract.LzxEncoder.BlockType;
+
+/**
+ * Decompresses files with different numbers of table bits for the main and
+ * length trees. Wider tables decode more codes with one lookup and pair more
+ * literals, but take longer to build for every block and fit worse in the
+ * cache; small sprites are dominated by the building, large textures by the
+ * decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HuffTableBenchmark {
+	@Param({ "8", "9", "10", "11", "12" })
+	public int mainTableBits;
+
+	@Param({ "6", "8", "10" })
+	public int lengthTableBits;
+
+	/** Literal heavy noise, a texture of mostly matches, and a small sprite */
+	@Param({ "noise", "texture", "sprite" })
+	public String content;
+
+	private byte[] xnb;
+	private ByteBuffer input;
+	private ByteBuffer output;
+	private LzxDecoder decoder;
+
+	@Setup
+	public void setup() {
+		byte[] data;
+		if (content.equals("noise")) {
+			data = LzxDecoderTest.noise(512, 512, 1);
+		} else if (content.equals("texture")) {
+			data = LzxDecoderTest.texture(512, 512, 1);
+		} else {
+			data = LzxDecoderTest.texture(32, 32, 1);
+		}
+		// A block every 32 KB, such that the tables are built as often as in real files
+		LzxEncoder encoder = new LzxEncoder();
+		for (int i = 0; i < data.length; i += 0x8000)
+			encoder.block(BlockType.VERBATIM, 0x8000);
+		xnb = encoder.xnb(data);
+		input = ByteBuffer.wrap(xnb);
+		output = ByteBuffer.allocate(data.length);
+		decoder = new LzxDecoder(mainTableBits, lengthTableBits);
+	}
+
+	@Benchmark
+	public ByteBuffer decompress() {
+		input.position(14);
+		output.clear();
+		decoder.decompress(input, xnb.length - 14, output, output.capacity());
+		return output;
+	}
+}
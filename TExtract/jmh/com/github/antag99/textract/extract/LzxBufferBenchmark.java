@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the bit reader of the decoder to the old one, reading a frame
+ * with the mix of peeks and short reads that Huffman decoding does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LzxBufferBenchmark {
+	private static final int FRAME_SIZE = 0x8000;
+
+	private byte[] frame;
+	/** The lengths of the codes to read, which add up to less than the frame */
+	private int[] lengths;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		frame = new byte[FRAME_SIZE + 8];
+		random.nextBytes(frame);
+		lengths = new int[FRAME_SIZE * 8 / 16];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = 1 + random.nextInt(16);
+	}
+
+	@Benchmark
+	public int current() {
+		LzxBuffer buffer = new LzxBuffer();
+		buffer.start(frame, 0, frame.length);
+		int sum = 0;
+		for (int length : lengths) {
+			buffer.ensureBits(16);
+			sum += buffer.peekBits(16);
+			buffer.removeBits(length);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int baseline() {
+		BaselineLzxDecoder.LzxBuffer buffer = new BaselineLzxDecoder.LzxBuffer(ByteBuffer.wrap(frame));
+		int sum = 0;
+		for (int length : lengths) {
+			buffer.ensureBits(16);
+			sum += buffer.peekBits(16);
+			buffer.removeBits(length);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.antag99.textract.extract.LzxEncoder.BlockType;
+
+/**
+ * Compares how fast the current and the old decoder decompress whole XNB
+ * files; divide the size of the data by the time for the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LzxDecoderBenchmark {
+	/** A texture of mostly literals, a texture of mostly matches, and text */
+	@Param({ "noise", "texture", "text" })
+	public String content;
+
+	@Param({ "VERBATIM", "ALIGNED" })
+	public String blockType;
+
+	private byte[] xnb;
+	private ByteBuffer input;
+	private ByteBuffer paddedInput;
+	private ByteBuffer output;
+	private LzxDecoder decoder;
+
+	@Setup
+	public void setup() {
+		byte[] data;
+		if (content.equals("noise")) {
+			data = LzxDecoderTest.noise(1024, 1024, 1);
+		} else if (content.equals("texture")) {
+			data = LzxDecoderTest.texture(1024, 1024, 1);
+		} else {
+			data = LzxDecoderTest.text(4 << 20, 1);
+		}
+		xnb = new LzxEncoder().block(BlockType.valueOf(blockType), data.length).xnb(data);
+		input = ByteBuffer.wrap(xnb).order(ByteOrder.LITTLE_ENDIAN);
+		// The old decoder reads ahead of the end of the data
+		paddedInput = ByteBuffer.allocate(xnb.length + 8).put(xnb);
+		output = ByteBuffer.allocate(data.length);
+		decoder = new LzxDecoder();
+	}
+
+	@Benchmark
+	public ByteBuffer current() {
+		input.position(14);
+		output.clear();
+		decoder.decompress(input, xnb.length - 14, output, output.capacity());
+		return output;
+	}
+
+	@Benchmark
+	public ByteBuffer currentFrames() {
+		input.position(14);
+		output.clear();
+		decoder.start(input, xnb.length - 14);
+		while (decoder.decompressFrame(output) != -1) {
+		}
+		return output;
+	}
+
+	@Benchmark
+	public ByteBuffer baseline() {
+		paddedInput.position(14);
+		output.clear();
+		new BaselineLzxDecoder().decompress(paddedInput, xnb.length - 14, output, output.capacity());
+		return output;
+	}
+}
@@ -0,0 +1,546 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.PngProfile;
+import com.github.antag99.textract.extract.TextureFormat;
+
+/**
+ * Hands files to {@link Worker} processes over localhost sockets, such that
+ * extraction is not limited by the heap of a single JVM and a crash caused by
+ * a malformed file only takes down one worker. Workers are either launched by
+ * the coordinator, or started separately and connected to its port.
+ * <p>
+ * Workers pull files from a shared queue as they have room for them, so idle
+ * workers take over the files that would otherwise wait on busy ones. Files
+ * being extracted by a worker that stops are queued again, up to a few
+ * attempts. Progress is reported through the protected methods, which may
+ * be invoked concurrently.
+ */
+class Coordinator {
+	// Messages from workers
+	static final byte HELLO = 1;
+	static final byte STATUS = 2;
+	static final byte PERCENTAGE = 3;
+	static final byte OUTPUT = 4;
+	static final byte DONE = 5;
+	// Messages to workers
+	static final byte TASK = 6;
+
+	// Number of times a file is handed out before it is assumed to crash workers
+	private static final int maxAttempts = 3;
+
+	private final File outputDirectory;
+	private final int workers;
+	private final int workerParallelism;
+	private final long workerMemoryLimit;
+	private final int port;
+	private final TextureFormat textureFormat;
+	private final PngProfile pngProfile;
+
+	private ServerSocket serverSocket;
+	private final PriorityBlockingQueue<RemoteTask> queue = new PriorityBlockingQueue<RemoteTask>();
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private final List<Process> processes = new ArrayList<Process>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	// Worker processes that are running, or being launched
+	private int liveProcesses;
+	// Number of times a worker process may still be replaced
+	private int restarts;
+	private volatile boolean closed;
+
+	/**
+	 * @param outputDirectory The directory workers extract to
+	 * @param workers The number of worker processes to launch
+	 * @param workerParallelism The number of files each launched worker extracts concurrently
+	 * @param workerMemoryLimit The number of bytes that the files each launched worker extracts may use together
+	 * @param port The port to listen on for workers, or zero for any free port
+	 * @param textureFormat The format launched workers extract textures to
+	 * @param pngProfile The PNG profile launched workers encode textures with
+	 */
+	public Coordinator(File outputDirectory, int workers, int workerParallelism, long workerMemoryLimit, int port,
+			TextureFormat textureFormat, PngProfile pngProfile) {
+		this.outputDirectory = outputDirectory;
+		this.workers = workers;
+		this.workerParallelism = workerParallelism;
+		this.workerMemoryLimit = workerMemoryLimit;
+		this.port = port;
+		this.textureFormat = textureFormat;
+		this.pngProfile = pngProfile;
+		this.restarts = workers * 2;
+	}
+
+	/**
+	 * Called when a worker reports the status of a file.
+	 */
+	protected void status(String status) {
+	}
+
+	/**
+	 * Called when a worker reports the progress of a file.
+	 */
+	protected void percentage(float percentage) {
+	}
+
+	/**
+	 * Called when a file is handed to a worker; again for each further attempt.
+	 * 
+	 * @param task The file to be extracted
+	 */
+	protected void started(ExtractionTask task) {
+	}
+
+	/**
+	 * Called when a file is handed to a worker, for the outputs of the file
+	 * that need not be written again; only wave bank tracks are skipped.
+	 * 
+	 * @param task The file to be extracted
+	 * @return The outputs that were written by an extraction that is being resumed
+	 */
+	protected List<File> writtenOutputs(ExtractionTask task) {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Called when a worker has written an output file.
+	 * 
+	 * @param task The file being extracted
+	 * @param outputFile The file that was written
+	 */
+	protected void output(ExtractionTask task, File outputFile) {
+	}
+
+	/**
+	 * Called when a worker has finished a file that textures were encoded
+	 * from, before {@link #finished(ExtractionTask, List, String, boolean)};
+	 * workers don't log these statistics themselves.
+	 * 
+	 * @param textures The number of textures encoded
+	 * @param pixelBytes The size of their pixel data
+	 * @param encodedBytes The size of the encoded images
+	 * @param nanos The time spent decompressing and encoding them
+	 */
+	protected void encoded(long textures, long pixelBytes, long encodedBytes, long nanos) {
+	}
+
+	/**
+	 * Called once for each submitted file, when it has been extracted or
+	 * extraction has failed.
+	 * 
+	 * @param task The file that was extracted
+	 * @param outputs The files that were written
+	 * @param hash The hash of the input file as the worker read it, see
+	 *            {@link Manifest#hash(java.nio.ByteBuffer)}; or null if unknown
+	 * @param success Whether the file was successfully extracted
+	 */
+	protected void finished(ExtractionTask task, List<File> outputs, String hash, boolean success) {
+	}
+
+	/**
+	 * Starts listening for workers, and launches the worker processes.
+	 * 
+	 * @throws IOException If the port could not be opened
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Log.debug("Waiting for workers on port " + serverSocket.getLocalPort());
+
+		Thread acceptor = new Thread("Coordinator") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (int i = 0; i < workers; i++) {
+			synchronized (this) {
+				liveProcesses++;
+			}
+			launch();
+		}
+	}
+
+	/**
+	 * Queues a file for extraction by the next worker that has room for it;
+	 * fails it right away if all launched workers are gone for good.
+	 */
+	public void submit(ExtractionTask task) {
+		queue.add(new RemoteTask(task));
+		checkWorkers();
+	}
+
+	/**
+	 * Disconnects all workers and stops the launched processes; files that
+	 * have not been extracted yet are dropped.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException ex) {
+			Log.debug("Failed to close coordinator socket", ex);
+		}
+
+		List<Connection> connections;
+		synchronized (this.connections) {
+			connections = new ArrayList<Connection>(this.connections);
+		}
+		for (Connection connection : connections)
+			connection.close();
+
+		synchronized (processes) {
+			for (Process process : processes)
+				process.destroy();
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Connection connection = new Connection(serverSocket.accept());
+				synchronized (connections) {
+					connections.add(connection);
+				}
+				connection.start();
+			} catch (IOException ex) {
+				if (!closed)
+					Log.error("Failed to accept worker", ex);
+			}
+		}
+	}
+
+	private void launch() {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java,
+				"-cp", System.getProperty("java.class.path"),
+				TExtract.class.getName(),
+				"--logLevel", "error",
+				"--parallelism", Integer.toString(workerParallelism),
+				"--memoryLimit", Long.toString(workerMemoryLimit),
+				"--textureFormat", textureFormat.getName(),
+				"--pngProfile", pngProfile.getName(),
+				"--worker", serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort());
+		builder.inheritIO();
+
+		final Process process;
+		try {
+			process = builder.start();
+		} catch (IOException ex) {
+			Log.error("Failed to launch worker", ex);
+			processStopped();
+			return;
+		}
+		synchronized (processes) {
+			processes.add(process);
+		}
+
+		Thread monitor = new Thread("Worker monitor") {
+			@Override
+			public void run() {
+				try {
+					int exitCode = process.waitFor();
+					if (!closed)
+						Log.error("Worker exited with code " + exitCode);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				synchronized (processes) {
+					processes.remove(process);
+				}
+				processStopped();
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	private void processStopped() {
+		if (closed)
+			return;
+
+		boolean restart;
+		synchronized (this) {
+			restart = restarts > 0;
+			if (restart)
+				restarts--;
+			else
+				liveProcesses--;
+		}
+		if (restart) {
+			launch();
+		} else {
+			checkWorkers();
+		}
+	}
+
+	/**
+	 * Fails the queued files once all launched workers are gone for good;
+	 * when workers may connect by themselves, they are waited for instead.
+	 * Checked whenever a worker stops or a file is submitted, and once all
+	 * files have been submitted.
+	 */
+	void checkWorkers() {
+		synchronized (this) {
+			if (liveProcesses > 0 || port != 0)
+				return;
+		}
+		synchronized (connections) {
+			if (!connections.isEmpty())
+				return;
+		}
+
+		RemoteTask remoteTask;
+		while ((remoteTask = queue.poll()) != null) {
+			Log.error("No workers left to extract " + remoteTask.task.getFile().getName());
+			finished(remoteTask.task, remoteTask.outputs, null, false);
+		}
+	}
+
+	/**
+	 * Hands a file out again after the worker extracting it stopped.
+	 */
+	private void retry(RemoteTask remoteTask) {
+		if (closed)
+			return;
+
+		if (remoteTask.attempts >= maxAttempts) {
+			Log.error("Giving up on " + remoteTask.task.getFile().getName() + "; " + remoteTask.attempts
+					+ " workers stopped while extracting it");
+			finished(remoteTask.task, remoteTask.outputs, null, false);
+			return;
+		}
+
+		remoteTask.outputs.clear();
+		queue.add(remoteTask);
+	}
+
+	/**
+	 * A file together with the state of its extraction by workers.
+	 */
+	private static class RemoteTask implements Comparable<RemoteTask> {
+		final ExtractionTask task;
+		final List<File> outputs = Collections.synchronizedList(new ArrayList<File>());
+		int attempts;
+
+		RemoteTask(ExtractionTask task) {
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(RemoteTask other) {
+			return task.compareTo(other.task);
+		}
+	}
+
+	/**
+	 * A connected worker. Messages from the worker are read on one thread,
+	 * while files are handed to it on another as it has room for them.
+	 */
+	private class Connection {
+		private final Socket socket;
+		private final DataInputStream input;
+		private final DataOutputStream output;
+		// Files handed to the worker, by the id they were sent with
+		private final Map<Integer, RemoteTask> tasks = new HashMap<Integer, RemoteTask>();
+		private Semaphore slots;
+		private boolean disconnected;
+		private volatile Thread dispatcher;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		void start() {
+			new Thread("Worker connection") {
+				@Override
+				public void run() {
+					try {
+						receive();
+					} catch (EOFException ex) {
+						// The worker disconnected
+					} catch (IOException ex) {
+						if (!closed)
+							Log.error("Lost connection to worker", ex);
+					} finally {
+						close();
+					}
+				}
+			}.start();
+		}
+
+		private void receive() throws IOException {
+			if (input.readByte() != HELLO)
+				throw new IOException("Unexpected message from worker");
+			slots = new Semaphore(input.readInt());
+
+			dispatcher = new Thread("Worker dispatcher") {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			};
+			dispatcher.start();
+
+			while (true) {
+				byte message = input.readByte();
+				switch (message) {
+				case STATUS:
+					input.readInt();
+					status(input.readUTF());
+					break;
+				case PERCENTAGE:
+					input.readInt();
+					percentage(input.readFloat());
+					break;
+				case OUTPUT: {
+					RemoteTask remoteTask = task(input.readInt());
+					File outputFile = new File(input.readUTF());
+					remoteTask.outputs.add(outputFile);
+					output(remoteTask.task, outputFile);
+					break;
+				}
+				case DONE: {
+					int id = input.readInt();
+					boolean success = input.readBoolean();
+					String hash = input.readUTF();
+					long textures = input.readLong();
+					long pixelBytes = input.readLong();
+					long encodedBytes = input.readLong();
+					long nanos = input.readLong();
+					RemoteTask remoteTask = task(id);
+					synchronized (this) {
+						tasks.remove(id);
+					}
+					slots.release();
+					if (textures > 0)
+						encoded(textures, pixelBytes, encodedBytes, nanos);
+					finished(remoteTask.task, remoteTask.outputs, hash.isEmpty() ? null : hash, success);
+					break;
+				}
+				default:
+					throw new IOException("Unexpected message from worker: " + message);
+				}
+			}
+		}
+
+		private synchronized RemoteTask task(int id) throws IOException {
+			RemoteTask remoteTask = tasks.get(id);
+			if (remoteTask == null)
+				throw new IOException("Unknown file id from worker: " + id);
+			return remoteTask;
+		}
+
+		private void dispatch() {
+			while (!closed) {
+				RemoteTask remoteTask;
+				try {
+					slots.acquire();
+					remoteTask = queue.take();
+				} catch (InterruptedException ex) {
+					return;
+				}
+
+				int id = nextId.incrementAndGet();
+				synchronized (this) {
+					if (disconnected) {
+						queue.add(remoteTask);
+						return;
+					}
+					remoteTask.attempts++;
+					tasks.put(id, remoteTask);
+				}
+				started(remoteTask.task);
+				List<File> writtenOutputs = writtenOutputs(remoteTask.task);
+
+				try {
+					synchronized (output) {
+						output.writeByte(TASK);
+						output.writeInt(id);
+						output.writeUTF(remoteTask.task.getFile().getAbsolutePath());
+						output.writeUTF(outputDirectory.getAbsolutePath());
+						output.writeInt(writtenOutputs.size());
+						for (File outputFile : writtenOutputs)
+							output.writeUTF(outputFile.getAbsolutePath());
+						output.flush();
+					}
+				} catch (IOException ex) {
+					if (!closed)
+						Log.error("Lost connection to worker", ex);
+					close();
+					return;
+				}
+			}
+		}
+
+		void close() {
+			List<RemoteTask> unfinished;
+			synchronized (this) {
+				if (disconnected)
+					return;
+				disconnected = true;
+				unfinished = new ArrayList<RemoteTask>(tasks.values());
+				tasks.clear();
+			}
+
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				Log.debug("Failed to close worker connection", ex);
+			}
+			if (dispatcher != null)
+				dispatcher.interrupt();
+			synchronized (connections) {
+				connections.remove(this);
+			}
+
+			for (RemoteTask remoteTask : unfinished)
+				retry(remoteTask);
+			checkWorkers();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+/**
+ * How files with the same decompressed data as another file are extracted;
+ * the data is only decoded and encoded once, for the first of the files.
+ */
+public enum Deduplication {
+	/**
+	 * Every file is extracted on its own.
+	 */
+	NONE,
+	/**
+	 * The outputs of duplicates are hard links to those of the original,
+	 * or copies where the file system doesn't support hard links.
+	 */
+	LINK,
+	/**
+	 * The outputs of duplicates are copies of those of the original.
+	 */
+	COPY,
+	/**
+	 * Duplicates have no outputs; instead, their outputs are mapped to those
+	 * of the original in a file in the output directory.
+	 */
+	MAPPING;
+
+	/**
+	 * @return The name of this mode, as used on the command line
+	 */
+	public String getName() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @param name The name of a mode, see {@link #getName()}
+	 * @return The mode, or null if there is no mode with the given name
+	 */
+	public static Deduplication forName(String name) {
+		for (Deduplication deduplication : values()) {
+			if (deduplication.getName().equals(name))
+				return deduplication;
+		}
+		return null;
+	}
+}
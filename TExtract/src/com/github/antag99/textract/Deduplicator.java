@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.OutputFile;
+
+/**
+ * Keeps track of the decompressed data of extracted files by hash, such that
+ * files with the same data are only extracted once. The outputs of a duplicate
+ * are created from those of the original once it has been extracted, as
+ * configured by the {@link Deduplication} mode. If the original fails, the
+ * first duplicate waiting for it claims the data and is extracted on its own.
+ */
+class Deduplicator {
+	public static final String FILE_NAME = "TExtract.duplicates";
+	private static final String HEADER = "TExtract duplicates 1";
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private final File outputDirectory;
+	private final Path outputPath;
+	private final Deduplication mode;
+	private final Map<String, Original> originals = new HashMap<String, Original>();
+	// Outputs of duplicates, relative to the output directory, mapped to those of the originals
+	private final Map<String, String> mappings = Collections.synchronizedMap(new TreeMap<String, String>());
+	private final AtomicInteger duplicates = new AtomicInteger();
+
+	/**
+	 * Notified when the original of a duplicate has been extracted.
+	 */
+	interface Listener {
+		/**
+		 * @param original The original file
+		 * @param outputs The files written for the original
+		 */
+		void extracted(File original, List<File> outputs);
+
+		/**
+		 * Called instead if the original failed, and the duplicate has claimed
+		 * the data in its place; it must be extracted on its own, and report
+		 * when it is, see {@link Deduplicator#finished(String, List, boolean)}.
+		 */
+		void claimed();
+	}
+
+	/**
+	 * A file whose duplicates wait for it to be extracted. Originals that
+	 * failed are forgotten, so a finished original has been extracted.
+	 */
+	static class Original {
+		private final String hash;
+		private final File file;
+		private List<File> outputs;
+		private boolean finished;
+		private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+		private Original(String hash, File file) {
+			this.hash = hash;
+			this.file = file;
+		}
+	}
+
+	private static class Waiter {
+		final File file;
+		final Listener listener;
+
+		Waiter(File file, Listener listener) {
+			this.file = file;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * @param outputDirectory The output directory, where the mapping file is kept
+	 * @param mode How the outputs of duplicates are created
+	 */
+	public Deduplicator(File outputDirectory, Deduplication mode) {
+		this.outputDirectory = outputDirectory;
+		this.outputPath = outputDirectory.toPath().toAbsolutePath();
+		this.mode = mode;
+	}
+
+	/**
+	 * Loads the mappings of the output directory, if there are any, such that
+	 * duplicates skipped by an incremental extraction remain mapped.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void load() throws IOException {
+		File file = new File(outputDirectory, FILE_NAME);
+		if (mode != Deduplication.MAPPING || !file.isFile())
+			return;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				Log.warn("Ignoring duplicates of unknown format: " + file);
+				return;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 2) {
+					Log.warn("Ignoring malformed duplicate entry: " + line);
+					continue;
+				}
+				mappings.put(fields[0], fields[1]);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the mappings to the output directory, if the mode uses them.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void save() throws IOException {
+		if (duplicates.get() > 0)
+			Log.info("Extracted " + duplicates.get() + " duplicate files from their originals");
+
+		if (mode != Deduplication.MAPPING)
+			return;
+
+		File file = new File(outputDirectory, FILE_NAME);
+		File temporaryFile = new File(outputDirectory, FILE_NAME + ".tmp");
+
+		Writer writer = new OutputStreamWriter(FileUtils.openOutputStream(temporaryFile), utf8);
+		try {
+			writer.write(HEADER);
+			writer.write('\n');
+			synchronized (mappings) {
+				for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+					writer.write(mapping.getKey());
+					writer.write('\t' + mapping.getValue());
+					writer.write('\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Claims the data with the given hash for a file, unless another file
+	 * has claimed it already. The file that claims it must report when it is
+	 * extracted, see {@link #finished(String, List, boolean)}.
+	 * 
+	 * @param hash The hash of the decompressed data of the file
+	 * @param file The file
+	 * @return The original file the given file is a duplicate of, or null if
+	 *         the file claimed the data, or had claimed it already
+	 */
+	public synchronized Original claim(String hash, File file) {
+		Original original = originals.get(hash);
+		if (original != null && !original.file.equals(file))
+			return original;
+		if (original == null)
+			originals.put(hash, new Original(hash, file));
+		return null;
+	}
+
+	/**
+	 * Notifies the listener when the original has been extracted; immediately
+	 * if it already has been. If the original failed meanwhile, the duplicate
+	 * waits for the file that claimed the data since, or claims it itself.
+	 * 
+	 * @param original The original, as returned by {@link #claim(String, File)}
+	 * @param duplicate The duplicate file
+	 * @param listener The listener to notify
+	 */
+	public void await(Original original, File duplicate, Listener listener) {
+		synchronized (this) {
+			Original current = originals.get(original.hash);
+			if (current == null) {
+				originals.put(original.hash, new Original(original.hash, duplicate));
+				original = null;
+			} else if (!current.finished) {
+				current.waiters.add(new Waiter(duplicate, listener));
+				return;
+			} else {
+				original = current;
+			}
+		}
+
+		if (original != null) {
+			listener.extracted(original.file, original.outputs);
+		} else {
+			listener.claimed();
+		}
+	}
+
+	/**
+	 * Reports that a file that claimed its data has been extracted.
+	 * 
+	 * @param hash The hash of the decompressed data of the file
+	 * @param outputs The files written for the file
+	 * @param success Whether the file was extracted successfully; if not,
+	 *            the first duplicate waiting for it claims the data instead,
+	 *            or else the next file with the same data
+	 */
+	public void finished(String hash, List<File> outputs, boolean success) {
+		Original original;
+		List<Waiter> waiters;
+		synchronized (this) {
+			original = originals.get(hash);
+			waiters = new ArrayList<Waiter>(original.waiters);
+			original.waiters.clear();
+
+			if (success) {
+				original.outputs = new ArrayList<File>(outputs);
+				original.finished = true;
+			} else if (waiters.isEmpty()) {
+				originals.remove(hash);
+			} else {
+				// The duplicates are independent inputs, so they don't fail along with the original;
+				// the others wait for the first one instead
+				Waiter claimant = waiters.get(0);
+				Original claimed = new Original(hash, claimant.file);
+				claimed.waiters.addAll(waiters.subList(1, waiters.size()));
+				originals.put(hash, claimed);
+				waiters = Collections.singletonList(claimant);
+			}
+		}
+
+		if (!success) {
+			for (Waiter waiter : waiters)
+				waiter.listener.claimed();
+			return;
+		}
+
+		// The outputs are no longer duplicates, if they were before
+		for (File output : outputs)
+			mappings.remove(relativize(output));
+		for (Waiter waiter : waiters)
+			waiter.listener.extracted(original.file, original.outputs);
+	}
+
+	/**
+	 * Creates the outputs of a duplicate from those of its original.
+	 * 
+	 * @param original The original file
+	 * @param outputs The files written for the original
+	 * @param duplicate The duplicate file
+	 * @return The files written for the duplicate; none if they are mapped instead
+	 * @throws IOException If an I/O error occurs
+	 */
+	public List<File> duplicate(File original, List<File> outputs, File duplicate) throws IOException {
+		duplicates.incrementAndGet();
+		String originalName = baseName(original);
+		String duplicateName = baseName(duplicate);
+
+		List<File> written = new ArrayList<File>();
+		for (File output : outputs) {
+			// Outputs are named after the input, such as Tile_1.png for Tile_1.xnb
+			if (!output.getName().startsWith(originalName))
+				continue;
+			File duplicateOutput = new File(output.getParentFile(),
+					duplicateName + output.getName().substring(originalName.length()));
+			if (duplicateOutput.equals(output))
+				continue;
+
+			if (mode == Deduplication.MAPPING) {
+				mappings.put(relativize(duplicateOutput), relativize(output));
+			} else {
+				OutputFile.duplicate(output, duplicateOutput, mode == Deduplication.LINK);
+				mappings.remove(relativize(duplicateOutput));
+				written.add(duplicateOutput);
+			}
+		}
+		return written;
+	}
+
+	private static String baseName(File file) {
+		String name = file.getName();
+		int extensionIndex = name.lastIndexOf('.');
+		return extensionIndex != -1 ? name.substring(0, extensionIndex) : name;
+	}
+
+	private String relativize(File file) {
+		return outputPath.relativize(file.toPath().toAbsolutePath()).toString();
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An extraction running in the background, as started by {@link Extractor#start()}.
+ */
+public class Extraction {
+	private final Extractor extractor;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private volatile boolean cancelled;
+
+	Extraction(Extractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Stops the extraction. Files that have not been started are skipped, and
+	 * files being decoded stop at the next LZX frame or wave bank track.
+	 */
+	public void cancel() {
+		cancelled = true;
+		extractor.cancel(this);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return Whether the extraction has finished or has stopped after being cancelled
+	 */
+	public boolean isDone() {
+		return terminated.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the extraction to finish, or to stop after being cancelled.
+	 * 
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**
+	 * Waits for the extraction to finish, or to stop after being cancelled.
+	 * 
+	 * @param timeout The maximum time to wait
+	 * @param unit The unit of the timeout
+	 * @return Whether the extraction terminated before the timeout elapsed
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	void terminate() {
+		terminated.countDown();
+	}
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.File;
+
+import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.AssetReader;
+import com.github.antag99.textract.extract.InputFile;
+import com.github.antag99.textract.extract.XnbExtractor;
+import com.github.antag99.textract.extract.XnbInfo;
+
+/**
+ * A file discovered by the {@link Extractor}, along with estimates of how
+ * expensive it is to extract and how much memory that takes. Tasks are ordered
+ * by decreasing cost, such that the most expensive files are started first.
+ */
+class ExtractionTask implements Comparable<ExtractionTask> {
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final long cost;
+	private final long memory;
+
+	/**
+	 * @param file The file to extract
+	 * @param length The length of the file, as obtained during discovery
+	 * @param lastModified The modification time of the file, as obtained during discovery
+	 * @param extractor The extractor to probe the file with, configured like the one that extracts it
+	 */
+	public ExtractionTask(File file, long length, long lastModified, XnbExtractor extractor) {
+		this.file = file;
+		this.length = length;
+		this.lastModified = lastModified;
+
+		long decodedSize = length;
+		long cost = length;
+		if (file.getName().endsWith(".xnb")) {
+			try {
+				XnbInfo info = XnbExtractor.readHeader(file);
+				// The type of compressed assets is only known once their first frame is decompressed
+				if (info.getTypeReaderName() == null)
+					info = extractor.probe(file);
+				decodedSize = Math.max(length, info.getDecompressedSize());
+				// Assets are as expensive as their reader expects them to be
+				AssetReader reader = extractor.getReaders().get(info.getTypeReaderName());
+				if (reader != null) {
+					cost = reader.getCost(info);
+					// Assets that are not written are dropped after the first frame
+					if (reader.getOutputFormat(extractor) == null)
+						decodedSize = 0;
+				}
+			} catch (Exception ex) {
+				// Extraction will report the error
+				Log.debug("Failed to probe " + file.getName(), ex);
+			}
+		}
+
+		// The whole file is read into memory along with the encoded output, which is
+		// at most as large as the decoded data; large files are mapped instead, and
+		// compressed data is decoded a frame at a time
+		this.cost = cost;
+		this.memory = (InputFile.isMapped(length) ? 0 : length) + decodedSize;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return The estimated number of bytes used while extracting the file
+	 */
+	public long getMemory() {
+		return memory;
+	}
+
+	@Override
+	public int compareTo(ExtractionTask other) {
+		return Long.compare(other.cost, cost);
+	}
+}
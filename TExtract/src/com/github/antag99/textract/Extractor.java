@@ -22,7 +22,14 @@
  ******************************************************************************/
 package com.github.antag99.textract;
 
+import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.AssetReaderRegistry;
+import com.github.antag99.textract.extract.DecoderCache;
+import com.github.antag99.textract.extract.OutputFile;
+import com.github.antag99.textract.extract.PngProfile;
+import com.github.antag99.textract.extract.TextureFormat;
 import com.github.antag99.textract.extract.XactExtractor;
+import com.github.antag99.textract.extract.XnbException;
 import com.github.antag99.textract.extract.XnbExtractor;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.TeeOutputStream;
@@ -31,96 +38,194 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Extractor {
     private final List<File> inputFiles = new ArrayList<File>();
-    private final List<File> filesToExtract = new LinkedList<>();
     private boolean logFileEnabled;
     private File outputDirectory;
     private StatusReporter statusReporter = StatusReporter.mutedReporter;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int writeParallelism = 2;
+    private int ffmpegParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private long memoryLimit = Runtime.getRuntime().maxMemory() / 4 * 3;
+    private boolean incremental = true;
+    private boolean resume;
+    private int workers;
+    private int coordinatorPort;
+    private TextureFormat textureFormat = TextureFormat.PNG;
+    private PngProfile pngProfile = PngProfile.BALANCED;
+    private Deduplication deduplication = Deduplication.NONE;
+    private AssetReaderRegistry readers = AssetReaderRegistry.getDefault();
+
+    // Decoding, disk writes and ffmpeg conversions each have their own pool,
+    // such that files waiting on one of them don't hold up the others
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor writeExecutor;
+    private ThreadPoolExecutor ffmpegExecutor;
+    private MemoryBudget memoryBudget;
+    private volatile FileDiscovery discovery;
+    private Extraction extraction;
+    private volatile boolean cancelled;
+    private Manifest manifest;
+    private Journal journal;
+    private Deduplicator deduplicator;
+    // Hands files to worker processes instead of the executor, if any
+    private volatile Coordinator coordinator;
+    // Number of submitted files that are not yet extracted, plus one until discovery has finished
+    private final AtomicInteger pendingFiles = new AtomicInteger();
+    private CountDownLatch finished;
 
     // Counters used for percentage bars
-    private long processedFiles = 0;
-    private long totalFiles = 0;
+    private final AtomicLong processedFiles = new AtomicLong();
+    private final AtomicLong discoveredFiles = new AtomicLong();
+    private final AtomicLong skippedFiles = new AtomicLong();
+    private volatile boolean discoveryFinished;
+
+    // Totals of the textures encoded in this process or by its workers, for comparing formats and PNG profiles
+    private final AtomicLong encodedTextures = new AtomicLong();
+    private final AtomicLong encodedPixelBytes = new AtomicLong();
+    private final AtomicLong encodedTextureBytes = new AtomicLong();
+    private final AtomicLong encodingNanos = new AtomicLong();
 
     public Extractor() {
     }
 
-    private void extractFiles() {
-        statusReporter.reportOverallStatus("Extracting files...");
+    private static ThreadPoolExecutor createExecutor(final String name, int threads, BlockingQueue<Runnable> queue) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
 
-        final int cores = Runtime.getRuntime().availableProcessors();
-        final int[] threadsRunning = {0};    // One element array such that it can be changed in a thread
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + counter.incrementAndGet());
+            }
+        });
+    }
 
-        System.out.println("DEBUG: There are " + cores + " available threads for extraction.");
+    private void startExtraction() {
+        Log.debug("Using " + parallelism + " threads for decoding, " + writeParallelism + " for writing and "
+                + ffmpegParallelism + " for ffmpeg");
 
-        // Extract all files in list
-        while (!this.filesToExtract.isEmpty()) {
+        // Fixed pool of workers; files waiting for a worker are kept in the queue,
+        // where the most expensive files are started first such that they don't end up as a long tail
+        executor = createExecutor("Extractor", parallelism, new PriorityBlockingQueue<Runnable>());
+        // Decoded files are kept in memory until written; when too many are waiting,
+        // the decoding thread writes the file itself instead of decoding more
+        writeExecutor = createExecutor("Writer", writeParallelism, new ArrayBlockingQueue<Runnable>(writeParallelism * 4));
+        writeExecutor.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // Once cancelled, the stage is failed by the caller rather than dropped unfinished
+                if (executor.isShutdown())
+                    throw new RejectedExecutionException("Extraction was cancelled");
+                runnable.run();
+            }
+        });
+        // Conversions only keep temporary files on disk, so they can queue up freely
+        ffmpegExecutor = createExecutor("Ffmpeg", ffmpegParallelism, new LinkedBlockingQueue<Runnable>());
+        memoryBudget = new MemoryBudget(memoryLimit);
+        DecoderCache.resetStatistics();
 
-            // If cores are available then extract
-            if (threadsRunning[0] < cores) {
-                // Remove file from list
-                final File assetFile = this.filesToExtract.remove(0);
-                // Inc threads counter
-                threadsRunning[0]++;
+        pendingFiles.set(1);
+        finished = new CountDownLatch(1);
+        processedFiles.set(0);
+        discoveredFiles.set(0);
+        skippedFiles.set(0);
+        encodedTextures.set(0);
+        encodedPixelBytes.set(0);
+        encodedTextureBytes.set(0);
+        encodingNanos.set(0);
+        discoveryFinished = false;
+        cancelled = false;
+    }
 
-                // Start a thread with the extraction of the file
-                (new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            statusReporter.reportTaskStatus("Extracting " + assetFile.getName());
-
-                            if (assetFile.getName().endsWith(".xnb")) {
-                                final XnbExtractor xnbExtractor  = new XnbExtractor();;
-                                xnbExtractor.extract(assetFile, outputDirectory);
-                            } else if (assetFile.getName().endsWith(".xwb")) {
-                                final XactExtractor xactExtractor = new XactExtractor() {
-                                    @Override
-                                    protected void status(String status) {
-                                        statusReporter.reportTaskStatus(status);
-                                    }
-
-                                    @Override
-                                    protected void percentage(float percentage) {
-                                        statusReporter.reportTaskPercentage(percentage);
-                                    }
-                                };;
-                                String directoryName = assetFile.getName().substring(0, assetFile.getName().lastIndexOf('.'));
-                                File directory = new File(outputDirectory, directoryName);
-                                directory.mkdirs();
-                                xactExtractor.extract(assetFile, directory);
-                            }
-                        } catch (Exception e) {
-                            System.err.println("ERROR: Failed to extract " + assetFile.getName());
-                            e.printStackTrace();
-                        }
+    /**
+     * Queues a discovered file for extraction; workers may start on it before discovery has finished.
+     *
+     * @param task The file to extract
+     */
+    private void submit(ExtractionTask task) {
+        if (cancelled)
+            return;
+
+        pendingFiles.incrementAndGet();
+        discoveredFiles.incrementAndGet();
+        if (coordinator != null) {
+            coordinator.submit(task);
+            return;
+        }
+        try {
+            executor.execute(new ExtractionJob(task));
+        } catch (RejectedExecutionException e) {
+            // The extraction was cancelled meanwhile
+        }
+    }
 
-                        threadsRunning[0]--;    // Decrement thread counter, (used to calculate threads which are left running)
-                        processedFiles++;
+    private void finishDiscovery() {
+        discoveryFinished = true;
+        // Files submitted after the last worker stopped are not left waiting
+        Coordinator coordinator = this.coordinator;
+        if (coordinator != null)
+            coordinator.checkWorkers();
+        statusReporter.reportOverallStatus("Extracting files...");
+        reportProgress();
+        if (pendingFiles.decrementAndGet() == 0) {
+            finished.countDown();
+        }
+    }
 
-                        float percentage = (float) ((double) processedFiles / (double) totalFiles);
+    private void awaitExtraction() {
+        try {
+            finished.await();
 
-                        statusReporter.reportOverallPercentage(percentage);
-                        statusReporter.reportTaskPercentage(percentage);
-                        System.out.println("INFO: Finished extracting " + assetFile.getName() + " " + percentage + "% complete " + threadsRunning[0] + " threads left running "
-                                + filesToExtract.size() + " items left to process.");
-                    }
-                }, "Extracting " + assetFile.getName())).start();
-            }
+            if (coordinator != null)
+                coordinator.close();
+
+            executor.shutdown();
+            writeExecutor.shutdown();
+            ffmpegExecutor.shutdown();
+            // Workers of a cancelled extraction stop at their next check
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            ffmpegExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for extraction to finish", e);
+            cancel();
+            Thread.currentThread().interrupt();
         }
 
-        // Wait for threads to finish - any hanging threads will cause this code to hang
-        while (threadsRunning[0] > 0) {
-            statusReporter.reportOverallStatus("DEBUG: Waiting on " + threadsRunning[0] + " threads to terminate");
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (DecoderCache.getRequests() > 0) {
+            Log.debug("Reused " + DecoderCache.getHits() + " of " + DecoderCache.getRequests()
+                    + " decoders and decompression buffers (" + Math.round(DecoderCache.getHitRate() * 100) + "%)");
+        }
+        reportEncoding();
+
+        if (cancelled) {
+            statusReporter.reportTaskStatus("Cancelled");
+            statusReporter.reportOverallStatus("Extraction cancelled");
+            return;
         }
 
         statusReporter.reportTaskStatus("Finished");
@@ -132,7 +237,155 @@ public class Extractor {
         statusReporter.reportOverallStatus("Finished extraction");
     }
 
+    private void reportEncoding() {
+        long textures = encodedTextures.get();
+        if (textures == 0)
+            return;
+
+        String format = textureFormat.getName();
+        if (textureFormat == TextureFormat.PNG)
+            format += " with the " + pngProfile.getName() + " profile";
+        double pixelMegabytes = encodedPixelBytes.get() / (1024.0 * 1024.0);
+        double encodedMegabytes = encodedTextureBytes.get() / (1024.0 * 1024.0);
+        double seconds = encodingNanos.get() / 1e9;
+        // Time is summed over all threads, so this is the throughput of a single thread
+        Log.info(String.format("Encoded %d textures as %s: %.1f MB of pixels to %.1f MB (%.1f%%), %.1f MB/s per thread",
+                textures, format, pixelMegabytes, encodedMegabytes, 100 * encodedMegabytes / pixelMegabytes,
+                seconds > 0 ? pixelMegabytes / seconds : 0));
+    }
+
+    /**
+     * Stops the given extraction if it is still the one running; a handle of
+     * an earlier extraction must not stop the extraction that replaced it.
+     *
+     * @param extraction The extraction to stop
+     */
+    synchronized void cancel(Extraction extraction) {
+        if (this.extraction == extraction && !extraction.isDone())
+            cancel();
+    }
+
+    /**
+     * Stops the current extraction; see {@link Extraction#cancel()}.
+     */
+    private void cancel() {
+        cancelled = true;
+
+        FileDiscovery discovery = this.discovery;
+        if (discovery != null)
+            discovery.cancel();
+
+        Coordinator coordinator = this.coordinator;
+        if (coordinator != null)
+            coordinator.close();
+
+        // Skips queued files and interrupts the workers
+        executor.shutdownNow();
+        writeExecutor.shutdownNow();
+        ffmpegExecutor.shutdownNow();
+
+        finished.countDown();
+    }
+
+    /**
+     * Updates the overall progress after a file has been extracted, whether it succeeded or not.
+     *
+     * @param assetFile The file that was extracted
+     */
+    private void finishFile(File assetFile) {
+        processedFiles.incrementAndGet();
+        reportProgress();
+        Log.debug("Finished extracting " + assetFile.getName());
+
+        if (pendingFiles.decrementAndGet() == 0) {
+            finished.countDown();
+        }
+    }
+
+    private void reportProgress() {
+        long processed = processedFiles.get();
+        long discovered = discoveredFiles.get();
+
+        if (discoveryFinished) {
+            float percentage = discovered == 0 ? 1f : (float) ((double) processed / (double) discovered);
+            statusReporter.reportOverallPercentage(percentage);
+            statusReporter.reportTaskPercentage(percentage);
+        } else {
+            // The total is unknown until all files are discovered
+            statusReporter.reportOverallStatus("Extracted " + processed + " of at least " + discovered + " files");
+        }
+    }
+
+    /**
+     * Extracts all input files, blocking until done.
+     */
     public void extract() {
+        Extraction extraction = start();
+        try {
+            extraction.awaitTermination();
+        } catch (InterruptedException e) {
+            extraction.cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts extracting all input files in the background.
+     *
+     * @return A handle for waiting on or cancelling the extraction
+     */
+    public Extraction start() {
+        return start(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts extracting all input files in the background, cancelling the
+     * extraction if it has not finished within the given time.
+     *
+     * @param timeout The time limit of the extraction, or zero for no limit
+     * @param unit    The unit of the time limit
+     * @return A handle for waiting on or cancelling the extraction
+     */
+    public synchronized Extraction start(long timeout, TimeUnit unit) {
+        if (extraction != null && !extraction.isDone()) {
+            throw new IllegalStateException("extraction already running");
+        }
+
+        startExtraction();
+        final Extraction extraction = new Extraction(this);
+        this.extraction = extraction;
+
+        final Timer deadline;
+        if (timeout > 0) {
+            deadline = new Timer("Extraction deadline", true);
+            deadline.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    Log.info("Time limit reached; cancelling extraction");
+                    extraction.cancel();
+                }
+            }, unit.toMillis(timeout));
+        } else {
+            deadline = null;
+        }
+
+        new Thread("Extraction") {
+            @Override
+            public void run() {
+                try {
+                    runExtraction();
+                } finally {
+                    if (deadline != null)
+                        deadline.cancel();
+                    extraction.terminate();
+                }
+            }
+        }.start();
+
+        return extraction;
+    }
+
+    private void runExtraction() {
         PrintStream stdOut = System.out;
         PrintStream stdErr = System.err;
         FileOutputStream logFile = null;
@@ -151,17 +404,72 @@ public class Extractor {
                     System.setErr(new PrintStream(new TeeOutputStream(stdErr, logFile)));
                 } catch (IOException ex) {
                     ex.printStackTrace();
+                    cancel();
                     return;
                 }
             }
 
-            for (File inputFile : inputFiles)
-                traverse(inputFile, inputFile.getParentFile(), outputDirectory);
-            // Gets all files to extract and adds them to the list
+            manifest = null;
+            if (incremental) {
+                manifest = new Manifest(outputDirectory);
+                try {
+                    manifest.load();
+                } catch (IOException ex) {
+                    Log.error("Failed to read manifest; extracting all files", ex);
+                }
+            }
+
+            journal = new Journal(outputDirectory);
+            try {
+                if (resume && journal.replay()) {
+                    Log.info("Resuming extraction; " + journal.getUnfinishedCount() + " files were left unfinished");
+                }
+                journal.open(resume);
+            } catch (IOException ex) {
+                Log.error("Failed to open journal", ex);
+            }
+
+            deduplicator = null;
+            if (deduplication != Deduplication.NONE && (workers > 0 || coordinatorPort > 0)) {
+                Log.warn("Deduplication is not supported with worker processes; extracting every file");
+            } else if (deduplication != Deduplication.NONE) {
+                deduplicator = new Deduplicator(outputDirectory, deduplication);
+                try {
+                    // Duplicates that are skipped keep their mappings
+                    if (incremental)
+                        deduplicator.load();
+                } catch (IOException ex) {
+                    Log.error("Failed to read duplicates", ex);
+                }
+            }
 
-            this.totalFiles = this.filesToExtract.size();
+            coordinator = null;
+            if (workers > 0 || coordinatorPort > 0) {
+                if (readers != AssetReaderRegistry.getDefault())
+                    Log.warn("Worker processes extract assets with the built-in readers");
+                coordinator = createCoordinator(outputDirectory);
+                try {
+                    coordinator.start();
+                } catch (IOException ex) {
+                    Log.error("Failed to start coordinator", ex);
+                    cancel();
+                }
+            }
 
-            extractFiles(); // Extract the files
+            try {
+                try {
+                    // Files are extracted as soon as they are discovered
+                    discover();
+                } finally {
+                    finishDiscovery();
+                }
+            } finally {
+                awaitExtraction();
+                saveManifest();
+                saveDuplicates();
+                // Kept around after a cancelled extraction, such that it can be resumed
+                journal.close(!cancelled);
+            }
         } finally {
             if (logFileEnabled) {
                 System.setOut(stdOut);
@@ -171,44 +479,458 @@ public class Extractor {
         }
     }
 
+    private void saveManifest() {
+        if (manifest == null)
+            return;
+
+        if (skippedFiles.get() > 0)
+            Log.info("Skipped " + skippedFiles.get() + " unchanged files");
+
+        try {
+            manifest.save();
+        } catch (IOException ex) {
+            Log.error("Failed to write manifest", ex);
+        }
+    }
+
+    private void saveDuplicates() {
+        if (deduplicator == null)
+            return;
+
+        try {
+            deduplicator.save();
+        } catch (IOException ex) {
+            Log.error("Failed to write duplicates", ex);
+        }
+    }
+
+    private void discover() {
+        long startTime = System.nanoTime();
+        // Probes the files, which are then scheduled by what their readers expect them to cost
+        final XnbExtractor probeExtractor = new XnbExtractor();
+        probeExtractor.setReaders(readers);
+        probeExtractor.setTextureFormat(textureFormat);
+        probeExtractor.setPngProfile(pngProfile);
+
+        FileDiscovery discovery = new FileDiscovery(parallelism) {
+            @Override
+            protected void directory(Path directory, Path relativePath) {
+                statusReporter.reportOverallStatus("Discovering files in " + relativePath + "/");
+            }
+
+            @Override
+            protected void file(File file, BasicFileAttributes attributes) {
+                String name = file.getName();
+                if (name.endsWith(".xnb") || name.endsWith(".xwb")) {
+                    long lastModified = attributes.lastModifiedTime().toMillis();
+                    if (manifest != null
+                            && manifest.isUpToDate(file, attributes.size(), lastModified, outputSettings(file))) {
+                        skippedFiles.incrementAndGet();
+                        return;
+                    }
+                    if (resume && journal.isCompleted(file, attributes.size(), lastModified)) {
+                        skippedFiles.incrementAndGet();
+                        journal.completed(file, attributes.size(), lastModified);
+                        recordResumed(file, attributes.size(), lastModified);
+                        return;
+                    }
+                    submit(new ExtractionTask(file, attributes.size(), lastModified, probeExtractor));
+                }
+            }
+        };
+        this.discovery = discovery;
+        // A cancellation before the assignment above is not seen by the discovery
+        if (!cancelled)
+            discovery.discover(inputFiles);
+        this.discovery = null;
+
+        Log.debug("Discovered " + discoveredFiles.get() + " files in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+    }
+
+    private Coordinator createCoordinator(File outputDirectory) {
+        int workerParallelism = Math.max(1, parallelism / Math.max(1, workers));
+        // The limit applies to all files being extracted, so the workers share it
+        long workerMemoryLimit = Math.max(1, memoryLimit / Math.max(1, workers));
+        return new Coordinator(outputDirectory, workers, workerParallelism, workerMemoryLimit, coordinatorPort,
+                textureFormat, pngProfile) {
+            @Override
+            protected void status(String status) {
+                statusReporter.reportTaskStatus(status);
+            }
+
+            @Override
+            protected void percentage(float percentage) {
+                statusReporter.reportTaskPercentage(percentage);
+            }
+
+            @Override
+            protected void started(ExtractionTask task) {
+                journal.started(task.getFile());
+            }
+
+            @Override
+            protected List<File> writtenOutputs(ExtractionTask task) {
+                // Tracks written before the extraction was interrupted are not extracted again
+                return resume ? journal.getOutputs(task.getFile()) : Collections.<File>emptyList();
+            }
+
+            @Override
+            protected void output(ExtractionTask task, File outputFile) {
+                journal.output(task.getFile(), outputFile);
+            }
+
+            @Override
+            protected void encoded(long textures, long pixelBytes, long encodedBytes, long nanos) {
+                // Reported along with the textures encoded in this process
+                encodedTextures.addAndGet(textures);
+                encodedPixelBytes.addAndGet(pixelBytes);
+                encodedTextureBytes.addAndGet(encodedBytes);
+                encodingNanos.addAndGet(nanos);
+            }
+
+            @Override
+            protected void finished(ExtractionTask task, List<File> outputs, String hash, boolean success) {
+                if (success)
+                    journal.completed(task.getFile(), task.getLength(), task.getLastModified());
+                if (manifest != null) {
+                    if (success) {
+                        manifest.record(task.getFile(), task.getLength(), task.getLastModified(), hash,
+                                outputSettings(task.getFile()), outputs);
+                    } else {
+                        manifest.remove(task.getFile());
+                    }
+                }
+                finishFile(task.getFile());
+            }
+        };
+    }
+
     /**
-     * @param file The file to compute the size of
+     * Describes the settings that affect the outputs of an input file, as recorded in
+     * the manifest; a file extracted with other settings is not up to date.
+     *
+     * @return The settings, or null if none apply to the file
      */
-    private int count(File file) {
-        int files = 0;
-        if (file.isDirectory()) {
-            for (File child : file.listFiles())
-                files += count(child);
-        } else {
-            files++;
+    private String outputSettings(File file) {
+        if (!file.getName().endsWith(".xnb"))
+            return null;
+        // Worker processes don't deduplicate files
+        Deduplication deduplication = deduplicator != null ? this.deduplication : Deduplication.NONE;
+        String settings = "textureFormat=" + textureFormat.getName();
+        // The profile only affects textures encoded as PNG
+        if (textureFormat == TextureFormat.PNG)
+            settings += " pngProfile=" + pngProfile.getName();
+        return settings + " deduplicate=" + deduplication.getName();
+    }
+
+    /**
+     * Records a file that was completed by the extraction being resumed in the manifest.
+     */
+    private void recordResumed(File file, long size, long lastModified) {
+        if (manifest == null)
+            return;
+
+        try {
+            // The file was read by the interrupted run, so it is hashed here
+            manifest.record(file, size, lastModified, Manifest.hash(file), outputSettings(file),
+                    journal.getOutputs(file));
+        } catch (IOException e) {
+            Log.error("Failed to record " + file.getName() + " in manifest", e);
         }
-        return files;
     }
 
     /**
-     * @param inputFile       The input file to traverse
-     * @param inputRoot       The root of the input file, for better status messages
-     * @param outputDirectory The output directory to put extracted files in
+     * Extracts a single file on a worker thread; ordered like the task it wraps.
+     * Writes and conversions are handed over to their own pools, and the file is
+     * finished once all of them are.
      */
-    private void traverse(File inputFile, File inputRoot, File outputDirectory) {
-        String relativePath = inputFile.getAbsolutePath().substring(inputRoot.getAbsolutePath().length());
-        if (relativePath.length() > 0)
-            relativePath = relativePath.substring(1);
+    private class ExtractionJob implements Runnable, Comparable<ExtractionJob> {
+        private final ExtractionTask task;
+        // Stages that are still running; decoding holds one until it returns
+        private final AtomicInteger remainingStages = new AtomicInteger(1);
+        // Stages that keep file data in memory; the memory budget is held until they are done
+        private final AtomicInteger remainingMemoryStages = new AtomicInteger(1);
+        // Files written so far, recorded in the manifest once all stages succeeded
+        private final List<File> outputs = Collections.synchronizedList(new ArrayList<File>());
+        private volatile boolean failed;
+        // Hash of the decompressed data, if duplicates of this file wait for it
+        private volatile String hash;
+        // Hash of the input file, as recorded in the manifest
+        private volatile String inputHash;
+        // Original whose outputs this file's outputs are mapped to, if it is such a duplicate
+        private volatile File mappedOriginal;
+        // Whether this file claimed its data after its original failed, and is to be extracted again
+        private volatile boolean reclaimed;
 
-        if (inputFile.isDirectory()) {
-            outputDirectory = new File(outputDirectory, inputFile.getName());
-            File[] files = inputFile.listFiles();
-            for (int i = 0; i < files.length; i++) {
-                statusReporter.reportOverallStatus("Discovering files in " + relativePath + "/");
-                File child = files[i];
+        ExtractionJob(ExtractionTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                memoryBudget.acquire(task.getMemory());
+            } catch (InterruptedException e) {
+                Log.error("Interrupted while waiting to extract " + task.getFile().getName(), e);
+                Thread.currentThread().interrupt();
+                // Nothing was reserved, but duplicates waiting for this file are told that it failed
+                failed = true;
+                finishStage(false);
+                return;
+            }
+
+            journal.started(task.getFile());
+            try {
+                extract();
+            } catch (CancellationException e) {
+                failed = true;
+                Log.debug("Cancelled extracting " + task.getFile().getName());
+            } catch (Exception e) {
+                failed = true;
+                Log.error("Failed to extract " + task.getFile().getName(), e);
+            } finally {
+                finishStage(true);
+            }
+        }
+
+        private void extract() throws IOException {
+            File assetFile = task.getFile();
+            statusReporter.reportTaskStatus("Extracting " + assetFile.getName());
+
+            if (assetFile.getName().endsWith(".xnb")) {
+                final XnbExtractor xnbExtractor = new XnbExtractor() {
+                    @Override
+                    protected void input(ByteBuffer contents) {
+                        ExtractionJob.this.input(contents);
+                    }
+
+                    @Override
+                    protected void output(OutputFile output) {
+                        write(output);
+                    }
+
+                    @Override
+                    protected boolean duplicate(String hash) {
+                        return ExtractionJob.this.duplicate(hash);
+                    }
+
+                    @Override
+                    protected void encoded(long pixelBytes, long encodedBytes, long nanos) {
+                        encodedTextures.incrementAndGet();
+                        encodedPixelBytes.addAndGet(pixelBytes);
+                        encodedTextureBytes.addAndGet(encodedBytes);
+                        encodingNanos.addAndGet(nanos);
+                    }
+                };
+                xnbExtractor.setReaders(readers);
+                xnbExtractor.setTextureFormat(textureFormat);
+                xnbExtractor.setPngProfile(pngProfile);
+                xnbExtractor.setDeduplicated(deduplicator != null);
+                xnbExtractor.extract(assetFile, outputDirectory);
+            } else if (assetFile.getName().endsWith(".xwb")) {
+                final XactExtractor xactExtractor = new XactExtractor() {
+                    @Override
+                    protected void input(ByteBuffer contents) {
+                        ExtractionJob.this.input(contents);
+                    }
+
+                    @Override
+                    protected void status(String status) {
+                        statusReporter.reportTaskStatus(status);
+                    }
+
+                    @Override
+                    protected void percentage(float percentage) {
+                        statusReporter.reportTaskPercentage(percentage);
+                    }
+
+                    @Override
+                    protected void output(OutputFile output) {
+                        write(output);
+                    }
+
+                    @Override
+                    protected void convert(final File xWmaFile, final File outputFile) {
+                        fork(ffmpegExecutor, false, new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                convertNow(xWmaFile, outputFile);
+                                if (!outputFile.exists()) {
+                                    throw new XnbException("ffmpeg failed to convert " + xWmaFile.getName());
+                                }
+                                written(outputFile);
+                                return null;
+                            }
+                        });
+                    }
 
-                statusReporter.reportTaskPercentage((float) i / (float) files.length);
-                statusReporter.reportTaskStatus("Found " + child.getName());
+                    private void convertNow(File xWmaFile, File outputFile) throws IOException {
+                        super.convert(xWmaFile, outputFile);
+                    }
 
-                traverse(child, inputRoot, outputDirectory);
+                    @Override
+                    protected boolean isExtracted(File outputFile) {
+                        // Tracks written before the extraction was interrupted are not extracted again
+                        if (resume && journal.isWritten(outputFile) && outputFile.exists()) {
+                            outputs.add(outputFile);
+                            journal.output(task.getFile(), outputFile);
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+                String directoryName = assetFile.getName().substring(0, assetFile.getName().lastIndexOf('.'));
+                File directory = new File(outputDirectory, directoryName);
+                directory.mkdirs();
+                xactExtractor.extract(assetFile, directory);
             }
-        } else if (inputFile.canRead() && (inputFile.getName().endsWith(".xnb") || inputFile.getName().endsWith(".xwb"))) {
-            this.filesToExtract.add(inputFile);
+        }
+
+        private void input(ByteBuffer contents) {
+            // Hashed while the contents are at hand, rather than read again once extracted
+            if (manifest != null)
+                inputHash = Manifest.hash(contents);
+        }
+
+        private void write(final OutputFile output) {
+            fork(writeExecutor, true, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    output.write();
+                    written(output.getFile());
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Checks whether another file with the same data has been extracted
+         * or is being extracted; if so, this file is finished from its outputs.
+         */
+        private boolean duplicate(final String hash) {
+            Deduplicator.Original original = deduplicator.claim(hash, task.getFile());
+            if (original == null) {
+                this.hash = hash;
+                return false;
+            }
+
+            // Held until the original has been extracted
+            remainingStages.incrementAndGet();
+            deduplicator.await(original, task.getFile(), new Deduplicator.Listener() {
+                @Override
+                public void extracted(final File original, final List<File> originalOutputs) {
+                    if (deduplication == Deduplication.MAPPING)
+                        mappedOriginal = original;
+                    fork(writeExecutor, false, new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            for (File outputFile : deduplicator.duplicate(original, originalOutputs, task.getFile()))
+                                written(outputFile);
+                            return null;
+                        }
+                    });
+                    finishStage(false);
+                }
+
+                @Override
+                public void claimed() {
+                    // Reported to the waiting duplicates once extracted, even if that fails
+                    ExtractionJob.this.hash = hash;
+                    reclaimed = true;
+                    finishStage(false);
+                }
+            });
+            return true;
+        }
+
+        private void written(File outputFile) {
+            outputs.add(outputFile);
+            journal.output(task.getFile(), outputFile);
+        }
+
+        /**
+         * Runs a stage of this file on another pool.
+         *
+         * @param holdsMemory Whether the stage keeps file data in memory
+         */
+        private void fork(Executor stageExecutor, final boolean holdsMemory, final Callable<Void> stage) {
+            remainingStages.incrementAndGet();
+            if (holdsMemory)
+                remainingMemoryStages.incrementAndGet();
+            try {
+                stageExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            stage.call();
+                        } catch (CancellationException e) {
+                            failed = true;
+                            Log.debug("Cancelled extracting " + task.getFile().getName());
+                        } catch (Exception e) {
+                            failed = true;
+                            Log.error("Failed to extract " + task.getFile().getName(), e);
+                        } finally {
+                            finishStage(holdsMemory);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The extraction was cancelled meanwhile
+                failed = true;
+                finishStage(holdsMemory);
+            }
+        }
+
+        private void finishStage(boolean holdsMemory) {
+            if (holdsMemory && remainingMemoryStages.decrementAndGet() == 0) {
+                memoryBudget.release(task.getMemory());
+            }
+            if (remainingStages.decrementAndGet() == 0) {
+                if (reclaimed && !failed && extractAgain())
+                    return;
+                if (!failed)
+                    journal.completed(task.getFile(), task.getLength(), task.getLastModified());
+                if (manifest != null)
+                    updateManifest();
+                if (hash != null)
+                    deduplicator.finished(hash, outputs, !failed);
+                finishFile(task.getFile());
+            }
+        }
+
+        /**
+         * Queues this file to be extracted on its own, after its original failed.
+         *
+         * @return Whether the file was queued
+         */
+        private boolean extractAgain() {
+            reclaimed = false;
+            remainingStages.set(1);
+            remainingMemoryStages.set(1);
+            try {
+                executor.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // The extraction was cancelled meanwhile
+                failed = true;
+                return false;
+            }
+        }
+
+        private void updateManifest() {
+            if (failed) {
+                manifest.remove(task.getFile());
+                return;
+            }
+
+            manifest.record(task.getFile(), task.getLength(), task.getLastModified(), inputHash,
+                    outputSettings(task.getFile()), outputs, mappedOriginal);
+        }
+
+        @Override
+        public int compareTo(ExtractionJob other) {
+            return task.compareTo(other.task);
         }
     }
 
@@ -232,6 +954,177 @@ public class Extractor {
         return inputFiles;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism The number of files to extract concurrently
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getWriteParallelism() {
+        return writeParallelism;
+    }
+
+    /**
+     * @param writeParallelism The number of output files to write concurrently
+     */
+    public void setWriteParallelism(int writeParallelism) {
+        if (writeParallelism < 1) {
+            throw new IllegalArgumentException("writeParallelism must be positive: " + writeParallelism);
+        }
+        this.writeParallelism = writeParallelism;
+    }
+
+    public int getFfmpegParallelism() {
+        return ffmpegParallelism;
+    }
+
+    /**
+     * @param ffmpegParallelism The number of ffmpeg processes to run concurrently
+     */
+    public void setFfmpegParallelism(int ffmpegParallelism) {
+        if (ffmpegParallelism < 1) {
+            throw new IllegalArgumentException("ffmpegParallelism must be positive: " + ffmpegParallelism);
+        }
+        this.ffmpegParallelism = ffmpegParallelism;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @param memoryLimit The number of bytes that files being extracted may use together;
+     *                    a file larger than this is extracted on its own
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        if (memoryLimit < 1) {
+            throw new IllegalArgumentException("memoryLimit must be positive: " + memoryLimit);
+        }
+        this.memoryLimit = memoryLimit;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental Whether to skip files that are unchanged since they were last
+     *                    extracted to the output directory, as recorded in its manifest
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * @param resume Whether to continue an extraction to the output directory that was interrupted,
+     *               skipping the files and tracks its journal shows as done
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @param workers The number of worker processes to launch and hand files to,
+     *                or zero to extract files in this process. Workers share the
+     *                memory limit; they write and convert files on their own
+     *                extraction threads, and do not deduplicate files
+     */
+    public void setWorkers(int workers) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("workers must not be negative: " + workers);
+        }
+        this.workers = workers;
+    }
+
+    public int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    /**
+     * @param coordinatorPort The localhost port on which workers started separately may connect,
+     *                        or zero to only use launched workers
+     */
+    public void setCoordinatorPort(int coordinatorPort) {
+        if (coordinatorPort < 0 || coordinatorPort > 65535) {
+            throw new IllegalArgumentException("coordinatorPort out of range: " + coordinatorPort);
+        }
+        this.coordinatorPort = coordinatorPort;
+    }
+
+    public TextureFormat getTextureFormat() {
+        return textureFormat;
+    }
+
+    /**
+     * @param textureFormat The format to extract textures to
+     */
+    public void setTextureFormat(TextureFormat textureFormat) {
+        if (textureFormat == null) {
+            throw new IllegalArgumentException("textureFormat cannot be null");
+        }
+        this.textureFormat = textureFormat;
+    }
+
+    public PngProfile getPngProfile() {
+        return pngProfile;
+    }
+
+    /**
+     * @param pngProfile The trade-off between encoding speed and size of extracted textures
+     */
+    public void setPngProfile(PngProfile pngProfile) {
+        if (pngProfile == null) {
+            throw new IllegalArgumentException("pngProfile cannot be null");
+        }
+        this.pngProfile = pngProfile;
+    }
+
+    public Deduplication getDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * @param deduplication How files with the same decompressed data as another file are extracted;
+     *                      only applies to files extracted in this process, not by worker processes
+     */
+    public void setDeduplication(Deduplication deduplication) {
+        if (deduplication == null) {
+            throw new IllegalArgumentException("deduplication cannot be null");
+        }
+        this.deduplication = deduplication;
+    }
+
+    public AssetReaderRegistry getReaders() {
+        return readers;
+    }
+
+    /**
+     * @param readers The readers of the asset types to extract, which also estimate what
+     *                extracting an asset costs; worker processes use the built-in readers
+     */
+    public void setReaders(AssetReaderRegistry readers) {
+        if (readers == null) {
+            throw new IllegalArgumentException("readers cannot be null");
+        }
+        this.readers = readers;
+    }
+
     public boolean isLogFileEnabled() {
         return logFileEnabled;
     }
@@ -41,6 +41,7 @@ import com.github.antag99.textract.extract.Steam;
 
 class ExtractorGUI {
 	private Extractor extractor;
+	private Extraction extraction;
 	private JFrame frame;
 	private JPanel contentPane;
 	private JPanel panel;
@@ -85,7 +86,13 @@ class ExtractorGUI {
 		cancelButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				System.exit(0);
+				if (extraction != null && !extraction.isDone()) {
+					// Exits once the extraction has stopped, such that no files are left half-written
+					cancelButton.setEnabled(false);
+					extraction.cancel();
+				} else {
+					System.exit(0);
+				}
 			}
 		});
 		buttonPanel.add(cancelButton);
@@ -104,10 +111,18 @@ class ExtractorGUI {
 
 					setPanel(extractionPanel);
 
+					extraction = extractor.start();
 					new Thread() {
 						@Override
 						public void run() {
-							extractor.extract();
+							try {
+								extraction.awaitTermination();
+							} catch (InterruptedException ex) {
+								Log.error("Interrupted while waiting for extraction", ex);
+							}
+							if (extraction.isCancelled()) {
+								System.exit(0);
+							}
 							SwingUtilities.invokeLater(new Runnable() {
 								@Override
 								public void run() {
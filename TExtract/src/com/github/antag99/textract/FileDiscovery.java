@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.esotericsoftware.minlog.Log;
+
+/**
+ * Walks input directories in parallel, splitting subdirectories across a
+ * {@link ForkJoinPool}. File attributes are read together with the directory
+ * listing where the platform supports it. Can be extended to receive the
+ * discovered files by overriding the {@link #file(File, BasicFileAttributes)}
+ * and {@link #directory(Path, Path)} methods, which may be invoked concurrently.
+ */
+class FileDiscovery {
+	private final int parallelism;
+	private volatile boolean cancelled;
+
+	public FileDiscovery(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Called when a directory is about to be listed.
+	 * 
+	 * @param directory The directory
+	 * @param relativePath The path of the directory relative to the parent of its input
+	 */
+	protected void directory(Path directory, Path relativePath) {
+	}
+
+	/**
+	 * Called for each regular file that is found.
+	 * 
+	 * @param file The file
+	 * @param attributes The attributes of the file
+	 */
+	protected void file(File file, BasicFileAttributes attributes) {
+	}
+
+	/**
+	 * Stops the walk; directories that have not yet been listed are skipped.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Discovers all files in the given inputs, blocking until the walk has finished.
+	 * 
+	 * @param inputFiles The files and directories to traverse
+	 */
+	public void discover(List<File> inputFiles) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (File inputFile : inputFiles) {
+				if (cancelled)
+					break;
+
+				Path input = inputFile.toPath().toAbsolutePath();
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(input, BasicFileAttributes.class);
+				} catch (IOException ex) {
+					Log.error("Failed to read " + inputFile, ex);
+					continue;
+				}
+
+				if (attributes.isDirectory()) {
+					Path root = input.getParent() != null ? input.getParent() : input;
+					pool.invoke(new DirectoryWalk(input, root));
+				} else if (attributes.isRegularFile()) {
+					file(inputFile, attributes);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class DirectoryWalk extends RecursiveAction {
+		private final Path directory;
+		private final Path root;
+
+		DirectoryWalk(Path directory, Path root) {
+			this.directory = directory;
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled)
+				return;
+
+			directory(directory, root.relativize(directory));
+
+			List<DirectoryWalk> subdirectories = new ArrayList<DirectoryWalk>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path child : stream) {
+					if (cancelled)
+						return;
+
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(child, BasicFileAttributes.class);
+					} catch (IOException ex) {
+						Log.error("Failed to read " + child, ex);
+						continue;
+					}
+
+					if (attributes.isDirectory()) {
+						subdirectories.add(new DirectoryWalk(child, root));
+					} else if (attributes.isRegularFile()) {
+						file(child.toFile(), attributes);
+					}
+				}
+			} catch (IOException ex) {
+				Log.error("Failed to list " + directory, ex);
+			}
+
+			invokeAll(subdirectories);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.esotericsoftware.minlog.Log;
+
+/**
+ * Append-only log of the progress of an extraction, kept in the output
+ * directory while extracting. Each line is written as soon as an input is
+ * started or completed, or an output file is complete, such that an
+ * extraction that was stopped abruptly can be resumed where it left off.
+ */
+class Journal {
+	public static final String FILE_NAME = "TExtract.journal";
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private static final String STARTED = "started";
+	private static final String OUTPUT = "output";
+	private static final String COMPLETED = "completed";
+
+	private final File file;
+	private final File outputDirectory;
+	private final Path outputPath;
+	private Writer writer;
+
+	// State replayed from a previous run
+	private final Map<String, Completion> completedInputs = new HashMap<String, Completion>();
+	private final Map<String, List<File>> writtenOutputs = new HashMap<String, List<File>>();
+	private final Set<File> writtenFiles = new HashSet<File>();
+	private final Set<String> startedInputs = new HashSet<String>();
+
+	/**
+	 * @param outputDirectory The output directory the journal belongs to
+	 */
+	public Journal(File outputDirectory) {
+		this.file = new File(outputDirectory, FILE_NAME);
+		this.outputDirectory = outputDirectory;
+		this.outputPath = outputDirectory.toPath().toAbsolutePath();
+	}
+
+	/**
+	 * Reads the journal left behind by a previous run, if there is one.
+	 * 
+	 * @return Whether there was a journal to read
+	 * @throws IOException If an I/O error occurs
+	 */
+	public boolean replay() throws IOException {
+		if (!file.isFile())
+			return false;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				try {
+					if (STARTED.equals(fields[0]) && fields.length == 2) {
+						startedInputs.add(fields[1]);
+					} else if (OUTPUT.equals(fields[0]) && fields.length == 3) {
+						File output = new File(outputDirectory, fields[2]);
+						outputs(fields[1]).add(output);
+						writtenFiles.add(output.getAbsoluteFile());
+					} else if (COMPLETED.equals(fields[0]) && fields.length == 4) {
+						completedInputs.put(fields[1], new Completion(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+					} else {
+						// The last line might be incomplete if the process died while writing it
+						Log.debug("Ignoring malformed journal entry: " + line);
+					}
+				} catch (NumberFormatException ex) {
+					Log.debug("Ignoring malformed journal entry: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		startedInputs.removeAll(completedInputs.keySet());
+		return true;
+	}
+
+	/**
+	 * Opens the journal for writing.
+	 * 
+	 * @param append Whether to keep the entries of a previous run, when resuming it
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void open(boolean append) throws IOException {
+		outputDirectory.mkdirs();
+		writer = new OutputStreamWriter(new FileOutputStream(file, append), utf8);
+	}
+
+	/**
+	 * Closes the journal, deleting it if the extraction finished.
+	 * 
+	 * @param finished Whether the extraction finished, such that it won't need to be resumed
+	 */
+	public synchronized void close(boolean finished) {
+		if (writer == null)
+			return;
+
+		try {
+			writer.close();
+		} catch (IOException ex) {
+			Log.error("Failed to close journal", ex);
+		}
+		writer = null;
+
+		if (finished)
+			file.delete();
+	}
+
+	public void started(File input) {
+		append(STARTED + '\t' + key(input));
+	}
+
+	public void output(File input, File output) {
+		append(OUTPUT + '\t' + key(input) + '\t' + outputPath.relativize(output.toPath().toAbsolutePath()));
+	}
+
+	public void completed(File input, long size, long lastModified) {
+		append(COMPLETED + '\t' + key(input) + '\t' + size + '\t' + lastModified);
+	}
+
+	private synchronized void append(String line) {
+		if (writer == null)
+			return;
+
+		try {
+			// Flushed right away, such that the entry survives the process dying
+			writer.write(line + '\n');
+			writer.flush();
+		} catch (IOException ex) {
+			Log.error("Failed to write journal", ex);
+		}
+	}
+
+	/**
+	 * @return Whether the input was completed in the previous run, and has not changed since
+	 */
+	public boolean isCompleted(File input, long size, long lastModified) {
+		Completion completion = completedInputs.get(key(input));
+		return completion != null && completion.size == size && completion.lastModified == lastModified;
+	}
+
+	/**
+	 * @return The outputs that were completely written for the input in the previous run
+	 */
+	public List<File> getOutputs(File input) {
+		List<File> outputs = writtenOutputs.get(key(input));
+		return outputs != null ? outputs : new ArrayList<File>();
+	}
+
+	/**
+	 * @return Whether the output file was completely written in the previous run
+	 */
+	public boolean isWritten(File output) {
+		return writtenFiles.contains(output.getAbsoluteFile());
+	}
+
+	/**
+	 * @return The number of inputs that were started but not completed in the previous run
+	 */
+	public int getUnfinishedCount() {
+		return startedInputs.size();
+	}
+
+	private List<File> outputs(String input) {
+		List<File> outputs = writtenOutputs.get(input);
+		if (outputs == null)
+			writtenOutputs.put(input, outputs = new ArrayList<File>());
+		return outputs;
+	}
+
+	private static String key(File input) {
+		return input.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	private static class Completion {
+		final long size;
+		final long lastModified;
+
+		Completion(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
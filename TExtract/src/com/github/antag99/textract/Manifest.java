@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.esotericsoftware.minlog.Log;
+
+/**
+ * Records which input files have been extracted, such that unchanged files
+ * can be skipped when extracting to the same output directory again. An input
+ * is unchanged if its size and modification time match; if only the
+ * modification time differs, the contents are hashed and compared instead.
+ * The hash recorded for a file is computed from the contents the extractor
+ * read, such that the input is not read again just to hash it.
+ * <p>
+ * Each entry also records the settings its outputs were extracted with, such
+ * as the texture format; an input extracted with other settings than those of
+ * the current run is extracted again.
+ * <p>
+ * Duplicates whose outputs are mapped to those of their original are only
+ * unchanged as long as the original is, and has not been extracted since.
+ */
+class Manifest {
+	public static final String FILE_NAME = "TExtract.manifest";
+	private static final String HEADER = "TExtract manifest 3";
+	private static final Charset utf8 = Charset.forName("UTF-8");
+	// Recorded instead of a hash if the contents were not hashed
+	private static final String NO_HASH = "-";
+	// Recorded instead of the settings if no setting applies to the input
+	private static final String NO_SETTINGS = "-";
+
+	private final File outputDirectory;
+	private final Path outputPath;
+	private final ConcurrentMap<String, Record> entries = new ConcurrentHashMap<String, Record>();
+
+	/**
+	 * @param outputDirectory The output directory the manifest belongs to
+	 */
+	public Manifest(File outputDirectory) {
+		this.outputDirectory = outputDirectory;
+		this.outputPath = outputDirectory.toPath().toAbsolutePath();
+	}
+
+	/**
+	 * Loads the manifest of the output directory, if there is one.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void load() throws IOException {
+		File file = new File(outputDirectory, FILE_NAME);
+		if (!file.isFile())
+			return;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+		try {
+			String header = reader.readLine();
+			if (!HEADER.equals(header)) {
+				// Older manifests don't record the settings of their outputs
+				Log.warn("Ignoring manifest of unknown format: " + file);
+				return;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length < 7) {
+					Log.warn("Ignoring malformed manifest entry: " + line);
+					continue;
+				}
+
+				List<String> outputs = new ArrayList<String>();
+				for (int i = 7; i < fields.length; i++)
+					outputs.add(fields[i]);
+
+				String original = null;
+				String originalHash = NO_HASH;
+				if (!fields[5].equals(NO_HASH)) {
+					original = fields[5];
+					originalHash = fields[6];
+				}
+
+				try {
+					entries.put(fields[0], new Record(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3],
+							fields[4], original, originalHash, outputs));
+				} catch (NumberFormatException ex) {
+					Log.warn("Ignoring malformed manifest entry: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the manifest to the output directory, replacing the previous one.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void save() throws IOException {
+		File file = new File(outputDirectory, FILE_NAME);
+		File temporaryFile = new File(outputDirectory, FILE_NAME + ".tmp");
+
+		Writer writer = new OutputStreamWriter(FileUtils.openOutputStream(temporaryFile), utf8);
+		try {
+			writer.write(HEADER);
+			writer.write('\n');
+			for (Map.Entry<String, Record> mapping : entries.entrySet()) {
+				Record entry = mapping.getValue();
+				writer.write(mapping.getKey());
+				writer.write('\t' + Long.toString(entry.size));
+				writer.write('\t' + Long.toString(entry.lastModified));
+				writer.write('\t' + entry.hash);
+				writer.write('\t' + entry.settings);
+				writer.write('\t' + (entry.original != null ? entry.original : NO_HASH));
+				writer.write('\t' + entry.originalHash);
+				for (String output : entry.outputs)
+					writer.write('\t' + output);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Checks whether an input file was extracted before and has not changed since.
+	 * 
+	 * @param input The input file
+	 * @param size The current size of the input file
+	 * @param lastModified The current modification time of the input file
+	 * @param settings The settings the input file would be extracted with, see
+	 *            {@link #record(File, long, long, String, String, List)}
+	 * @return Whether the file can be skipped
+	 */
+	public boolean isUpToDate(File input, long size, long lastModified, String settings) {
+		String key = key(input);
+		Record entry = entries.get(key);
+		if (entry == null || entry.size != size || !entry.settings.equals(settings(settings)))
+			return false;
+
+		for (String output : entry.outputs) {
+			if (!new File(outputDirectory, output).exists())
+				return false;
+		}
+
+		if (entry.original != null && !isOriginalUpToDate(entry, settings))
+			return false;
+
+		if (entry.lastModified == lastModified)
+			return true;
+
+		// The file might have been touched without being changed, e.g. when reinstalling
+		if (entry.hash.equals(NO_HASH))
+			return false;
+		try {
+			if (!entry.hash.equals(hash(input)))
+				return false;
+		} catch (IOException ex) {
+			Log.debug("Failed to hash " + input, ex);
+			return false;
+		}
+
+		// Allows the next run to skip hashing
+		entries.replace(key, entry, new Record(size, lastModified, entry.hash, entry.settings, entry.original,
+				entry.originalHash, entry.outputs));
+		return true;
+	}
+
+	/**
+	 * Checks whether the original of a duplicate is unchanged, and has not
+	 * been extracted again since the duplicate was recorded.
+	 */
+	private boolean isOriginalUpToDate(Record entry, String settings) {
+		Record original = entries.get(entry.original);
+		if (original == null || entry.originalHash.equals(NO_HASH) || !original.hash.equals(entry.originalHash))
+			return false;
+
+		File originalFile = new File(entry.original);
+		return isUpToDate(originalFile, originalFile.length(), originalFile.lastModified(), settings);
+	}
+
+	/**
+	 * Records that an input file has been extracted.
+	 * 
+	 * @param input The input file
+	 * @param size The size of the input file when it was extracted
+	 * @param lastModified The modification time of the input file when it was extracted
+	 * @param hash The hash of the contents of the input file, see {@link #hash(ByteBuffer)};
+	 *            or null if unknown, in which case the file is extracted again once touched
+	 * @param settings The settings that affect the outputs, without tabs or line breaks;
+	 *            or null if none apply to the input file
+	 * @param outputs The files produced from the input file
+	 */
+	public void record(File input, long size, long lastModified, String hash, String settings, List<File> outputs) {
+		record(input, size, lastModified, hash, settings, outputs, null);
+	}
+
+	/**
+	 * Records that an input file has been extracted as a duplicate, whose
+	 * outputs are mapped to those of its original.
+	 * 
+	 * @param original The original, which must have been recorded already;
+	 *            or null if the file is not such a duplicate
+	 * @see #record(File, long, long, String, String, List)
+	 */
+	public void record(File input, long size, long lastModified, String hash, String settings, List<File> outputs,
+			File original) {
+		List<String> relativeOutputs = new ArrayList<String>();
+		for (File output : outputs)
+			relativeOutputs.add(outputPath.relativize(output.toPath().toAbsolutePath()).toString());
+
+		String originalKey = null;
+		String originalHash = NO_HASH;
+		if (original != null) {
+			originalKey = key(original);
+			Record originalEntry = entries.get(originalKey);
+			if (originalEntry != null)
+				originalHash = originalEntry.hash;
+		}
+
+		entries.put(key(input), new Record(size, lastModified, hash != null ? hash : NO_HASH, settings(settings),
+				originalKey, originalHash, relativeOutputs));
+	}
+
+	/**
+	 * Forgets an input file, such that it is extracted again on the next run.
+	 * 
+	 * @param input The input file
+	 */
+	public void remove(File input) {
+		entries.remove(key(input));
+	}
+
+	private static String key(File input) {
+		return input.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	private static String settings(String settings) {
+		return settings != null && !settings.isEmpty() ? settings : NO_SETTINGS;
+	}
+
+	/**
+	 * @param contents The contents of an input file, from position to limit; consumed
+	 * @return The hash of the contents, as recorded in the manifest
+	 */
+	static String hash(ByteBuffer contents) {
+		MessageDigest digest = digest();
+		digest.update(contents);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param input An input file
+	 * @return The hash of the contents of the file, see {@link #hash(ByteBuffer)}
+	 * @throws IOException If an I/O error occurs
+	 */
+	static String hash(File input) throws IOException {
+		MessageDigest digest = digest();
+		byte[] buffer = new byte[1 << 16];
+		InputStream stream = new FileInputStream(input);
+		try {
+			int count;
+			while ((count = stream.read(buffer)) != -1)
+				digest.update(buffer, 0, count);
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static String toHex(byte[] hash) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : hash)
+			result.append(String.format("%02x", b & 0xff));
+		return result.toString();
+	}
+
+	private static class Record {
+		final long size;
+		final long lastModified;
+		final String hash;
+		final String settings;
+		// The key of the original of a duplicate with mapped outputs, and its hash when recorded
+		final String original;
+		final String originalHash;
+		final List<String> outputs;
+
+		Record(long size, long lastModified, String hash, String settings, String original, String originalHash,
+				List<String> outputs) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.settings = settings;
+			this.original = original;
+			this.originalHash = originalHash;
+			this.outputs = outputs;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+/**
+ * Limits the number of bytes used by files that are being extracted, by
+ * holding back files until enough of the budget is free.
+ */
+class MemoryBudget {
+	private final long limit;
+	private long used;
+
+	/**
+	 * @param limit The number of bytes available
+	 */
+	public MemoryBudget(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Waits until the given number of bytes is available, and reserves them.
+	 * Requests larger than the whole budget are granted once nothing else is
+	 * reserved, as they would otherwise never be granted.
+	 * 
+	 * @param bytes The number of bytes to reserve
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		while (used > 0 && used + bytes > limit) {
+			wait();
+		}
+		used += bytes;
+	}
+
+	/**
+	 * @param bytes The number of bytes to give back, as passed to {@link #acquire(long)}
+	 */
+	public synchronized void release(long bytes) {
+		used -= bytes;
+		notifyAll();
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+}
@@ -25,12 +25,16 @@ package com.github.antag99.textract;
 import static java.lang.String.format;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.UIManager;
 
 import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.PngProfile;
+import com.github.antag99.textract.extract.TextureFormat;
 
 class TExtract {
 	public TExtract() {
@@ -53,12 +57,59 @@ class TExtract {
 		}
 	}
 
+	private Integer parsePositiveInt(String value) {
+		try {
+			int result = Integer.parseInt(value);
+			return result > 0 ? result : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private Long parseSize(String value) {
+		long unit = 1;
+		switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+		case 'k':
+			unit = 1L << 10;
+			break;
+		case 'm':
+			unit = 1L << 20;
+			break;
+		case 'g':
+			unit = 1L << 30;
+			break;
+		}
+		if (unit != 1)
+			value = value.substring(0, value.length() - 1);
+
+		try {
+			long result = Long.parseLong(value);
+			// Sizes that don't fit in a long are as malformed as negative ones
+			return result > 0 && result <= Long.MAX_VALUE / unit ? result * unit : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
 	public void run(String[] args) {
 		List<File> inputs = new ArrayList<File>();
 		// null is used for default values
 		File outputDirectory = null;
 		Integer logLevel = null;
 		Boolean logFileEnabled = null;
+		Boolean incremental = null;
+		Boolean resume = null;
+		Integer parallelism = null;
+		Integer writeParallelism = null;
+		Integer ffmpegParallelism = null;
+		Long memoryLimit = null;
+		Integer timeLimit = null;
+		Integer workers = null;
+		Integer coordinatorPort = null;
+		String worker = null;
+		TextureFormat textureFormat = null;
+		PngProfile pngProfile = null;
+		Deduplication deduplication = null;
 
 		for (int i = 0; i < args.length; i++) {
 			switch (args[i]) {
@@ -70,6 +121,20 @@ class TExtract {
 					Log.info(format("    --logLevel trace|debug|info|error|none"));
 					Log.info(format("    --logFile"));
 					Log.info(format("    --no-logFile"));
+					Log.info(format("    --incremental"));
+					Log.info(format("    --no-incremental"));
+					Log.info(format("    --resume"));
+					Log.info(format("    --parallelism count"));
+					Log.info(format("    --writeParallelism count"));
+					Log.info(format("    --ffmpegParallelism count"));
+					Log.info(format("    --memoryLimit bytes[k|m|g]"));
+					Log.info(format("    --timeLimit seconds"));
+					Log.info(format("    --workers count (not with --writeParallelism, --ffmpegParallelism or --deduplicate)"));
+					Log.info(format("    --coordinatorPort port"));
+					Log.info(format("    --worker host:port"));
+					Log.info(format("    --textureFormat png|rgba|qoi|tga"));
+					Log.info(format("    --pngProfile fast|balanced|small|adaptive"));
+					Log.info(format("    --deduplicate link|copy|mapping"));
 				} else {
 					Log.error(format("Invalid option --help"));
 				}
@@ -114,6 +179,165 @@ class TExtract {
 				}
 				logFileEnabled = false;
 				break;
+			case "--incremental":
+			case "-incremental":
+				if (incremental != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				incremental = true;
+				break;
+			case "--no-incremental":
+			case "-no-incremental":
+				if (incremental != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				incremental = false;
+				break;
+			case "--resume":
+			case "-resume":
+				if (resume != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				resume = true;
+				break;
+			case "--parallelism":
+			case "-parallelism":
+				if (parallelism != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (parallelism = parsePositiveInt(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; positive number expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--writeParallelism":
+			case "-writeParallelism":
+				if (writeParallelism != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (writeParallelism = parsePositiveInt(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; positive number expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--ffmpegParallelism":
+			case "-ffmpegParallelism":
+				if (ffmpegParallelism != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (ffmpegParallelism = parsePositiveInt(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; positive number expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--memoryLimit":
+			case "-memoryLimit":
+				if (memoryLimit != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || args[i + 1].isEmpty() || (memoryLimit = parseSize(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; size expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--timeLimit":
+			case "-timeLimit":
+				if (timeLimit != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (timeLimit = parsePositiveInt(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; positive number expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--workers":
+			case "-workers":
+				if (workers != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (workers = parsePositiveInt(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; positive number expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--coordinatorPort":
+			case "-coordinatorPort":
+				if (coordinatorPort != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (coordinatorPort = parsePositiveInt(args[i + 1])) == null
+						|| coordinatorPort > 65535) {
+					Log.error(format("Malformed option %s; port expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--worker":
+			case "-worker":
+				if (worker != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || args[i + 1].lastIndexOf(':') == -1
+						|| parsePositiveInt(args[i + 1].substring(args[i + 1].lastIndexOf(':') + 1)) == null) {
+					Log.error(format("Malformed option %s; host:port expected", args[i]));
+					return;
+				}
+				worker = args[++i];
+				break;
+			case "--textureFormat":
+			case "-textureFormat":
+				if (textureFormat != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (textureFormat = TextureFormat.forName(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; format expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--pngProfile":
+			case "-pngProfile":
+				if (pngProfile != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (pngProfile = PngProfile.forName(args[i + 1])) == null) {
+					Log.error(format("Malformed option %s; profile expected", args[i]));
+					return;
+				}
+				i++;
+				break;
+			case "--deduplicate":
+			case "-deduplicate":
+				if (deduplication != null) {
+					Log.error(format("Duplicate option %s", args[i]));
+					return;
+				}
+				if (i + 1 == args.length || (deduplication = Deduplication.forName(args[i + 1])) == null
+						|| deduplication == Deduplication.NONE) {
+					Log.error(format("Malformed option %s; mode expected", args[i]));
+					return;
+				}
+				i++;
+				break;
 			default:
 				if ("--".equals(args[i])) {
 					i++;
@@ -130,7 +354,29 @@ class TExtract {
 
 		Log.set(logLevel != null ? logLevel : Log.LEVEL_TRACE);
 
-		if (outputDirectory == null && inputs.size() == 0) {// GUI
+		if (workers != null || coordinatorPort != null) {
+			// Workers write and convert files on their extraction threads, and don't share hashes
+			String unsupported = writeParallelism != null ? "--writeParallelism"
+					: ffmpegParallelism != null ? "--ffmpegParallelism"
+							: deduplication != null ? "--deduplicate" : null;
+			if (unsupported != null) {
+				Log.error(format("Option %s is not supported with worker processes", unsupported));
+				return;
+			}
+		}
+
+		if (worker != null) {// Worker of another TExtract process
+			String host = worker.substring(0, worker.lastIndexOf(':'));
+			int port = parsePositiveInt(worker.substring(worker.lastIndexOf(':') + 1));
+			try {
+				new Worker(host, port, parallelism != null ? parallelism : Runtime.getRuntime().availableProcessors(),
+						memoryLimit != null ? memoryLimit : Runtime.getRuntime().maxMemory() / 4 * 3,
+						textureFormat != null ? textureFormat : TextureFormat.PNG,
+						pngProfile != null ? pngProfile : PngProfile.BALANCED).run();
+			} catch (IOException ex) {
+				Log.error("Worker failed", ex);
+			}
+		} else if (outputDirectory == null && inputs.size() == 0) {// GUI
 			// Set system-specific look and feel when not on Linux
 			if (System.getProperty("os.name").indexOf("Linux") == -1) {
 				try {
@@ -169,7 +415,33 @@ class TExtract {
 			extractor.setLogFileEnabled(logFileEnabled != null && logFileEnabled);
 			extractor.getInputFiles().addAll(inputs);
 			extractor.setOutputDirectory(outputDirectory);
-			extractor.extract();
+			// Skip unchanged files by default
+			extractor.setIncremental(incremental == null || incremental);
+			extractor.setResume(resume != null && resume);
+			if (parallelism != null)
+				extractor.setParallelism(parallelism);
+			if (writeParallelism != null)
+				extractor.setWriteParallelism(writeParallelism);
+			if (ffmpegParallelism != null)
+				extractor.setFfmpegParallelism(ffmpegParallelism);
+			if (memoryLimit != null)
+				extractor.setMemoryLimit(memoryLimit);
+			if (workers != null)
+				extractor.setWorkers(workers);
+			if (coordinatorPort != null)
+				extractor.setCoordinatorPort(coordinatorPort);
+			if (textureFormat != null)
+				extractor.setTextureFormat(textureFormat);
+			if (pngProfile != null)
+				extractor.setPngProfile(pngProfile);
+			if (deduplication != null)
+				extractor.setDeduplication(deduplication);
+			Extraction extraction = extractor.start(timeLimit != null ? timeLimit : 0, TimeUnit.SECONDS);
+			try {
+				extraction.awaitTermination();
+			} catch (InterruptedException ex) {
+				extraction.cancel();
+			}
 		}
 	}
 
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.esotericsoftware.minlog.Log;
+import com.github.antag99.textract.extract.OutputFile;
+import com.github.antag99.textract.extract.PngProfile;
+import com.github.antag99.textract.extract.TextureFormat;
+import com.github.antag99.textract.extract.XactExtractor;
+import com.github.antag99.textract.extract.XnbExtractor;
+
+/**
+ * Extracts files handed out by a {@link Coordinator}, reporting progress and
+ * written files back to it. Runs until the coordinator disconnects.
+ */
+class Worker {
+	private final String host;
+	private final int port;
+	private final int parallelism;
+	private final MemoryBudget memoryBudget;
+	private final TextureFormat textureFormat;
+	private final PngProfile pngProfile;
+
+	private DataOutputStream output;
+
+	/**
+	 * @param host The host of the coordinator
+	 * @param port The port of the coordinator
+	 * @param parallelism The number of files to extract concurrently
+	 * @param memoryLimit The number of bytes that files being extracted may use together
+	 * @param textureFormat The format to extract textures to
+	 * @param pngProfile The PNG profile to encode textures with
+	 */
+	public Worker(String host, int port, int parallelism, long memoryLimit, TextureFormat textureFormat,
+			PngProfile pngProfile) {
+		this.host = host;
+		this.port = port;
+		this.parallelism = parallelism;
+		this.memoryBudget = new MemoryBudget(memoryLimit);
+		this.textureFormat = textureFormat;
+		this.pngProfile = pngProfile;
+	}
+
+	/**
+	 * Connects to the coordinator and extracts files until it disconnects.
+	 * 
+	 * @throws IOException If the connection failed
+	 */
+	public void run() throws IOException {
+		Socket socket = new Socket(host, port);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			synchronized (output) {
+				output.writeByte(Coordinator.HELLO);
+				output.writeInt(parallelism);
+				output.flush();
+			}
+
+			while (true) {
+				byte message;
+				try {
+					message = input.readByte();
+				} catch (EOFException ex) {
+					break;
+				}
+				if (message != Coordinator.TASK)
+					throw new IOException("Unexpected message from coordinator: " + message);
+
+				final int id = input.readInt();
+				final File inputFile = new File(input.readUTF());
+				final File outputDirectory = new File(input.readUTF());
+				int writtenCount = input.readInt();
+				final Set<File> writtenOutputs = new HashSet<File>();
+				for (int i = 0; i < writtenCount; i++)
+					writtenOutputs.add(new File(input.readUTF()));
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						extract(id, inputFile, outputDirectory, writtenOutputs);
+					}
+				});
+			}
+		} finally {
+			executor.shutdownNow();
+			socket.close();
+		}
+	}
+
+	/**
+	 * @param writtenOutputs The outputs written by the extraction being resumed, which are not written again
+	 */
+	private void extract(int id, File inputFile, File outputDirectory, Set<File> writtenOutputs) {
+		XnbExtractor probeExtractor = new XnbExtractor();
+		probeExtractor.setTextureFormat(textureFormat);
+		probeExtractor.setPngProfile(pngProfile);
+		long memory = new ExtractionTask(inputFile, inputFile.length(), inputFile.lastModified(), probeExtractor)
+				.getMemory();
+		try {
+			memoryBudget.acquire(memory);
+		} catch (InterruptedException ex) {
+			// The coordinator disconnected
+			return;
+		}
+		try {
+			extractNow(id, inputFile, outputDirectory, writtenOutputs);
+		} finally {
+			memoryBudget.release(memory);
+		}
+	}
+
+	private void extractNow(final int id, File inputFile, File outputDirectory, final Set<File> writtenOutputs) {
+		boolean success = false;
+		// Hashed for the manifest of the coordinator, while the contents are at hand
+		final String[] hash = new String[1];
+		// Textures encoded, their pixel and encoded bytes and the time spent, reported to the coordinator
+		final long[] encoding = new long[4];
+		try {
+			status(id, "Extracting " + inputFile.getName());
+			if (inputFile.getName().endsWith(".xnb")) {
+				XnbExtractor xnbExtractor = new XnbExtractor() {
+					@Override
+					protected void input(ByteBuffer contents) {
+						hash[0] = Manifest.hash(contents);
+					}
+
+					@Override
+					protected void output(OutputFile output) throws IOException {
+						output.write();
+						written(id, output.getFile());
+					}
+
+					@Override
+					protected void encoded(long pixelBytes, long encodedBytes, long nanos) {
+						encoding[0]++;
+						encoding[1] += pixelBytes;
+						encoding[2] += encodedBytes;
+						encoding[3] += nanos;
+					}
+				};
+				xnbExtractor.setTextureFormat(textureFormat);
+				xnbExtractor.setPngProfile(pngProfile);
+				xnbExtractor.extract(inputFile, outputDirectory);
+			} else if (inputFile.getName().endsWith(".xwb")) {
+				XactExtractor xactExtractor = new XactExtractor() {
+					@Override
+					protected void input(ByteBuffer contents) {
+						hash[0] = Manifest.hash(contents);
+					}
+
+					@Override
+					protected void status(String status) {
+						Worker.this.status(id, status);
+					}
+
+					@Override
+					protected void percentage(float percentage) {
+						Worker.this.percentage(id, percentage);
+					}
+
+					@Override
+					protected void output(OutputFile output) throws IOException {
+						output.write();
+						written(id, output.getFile());
+					}
+
+					@Override
+					protected void convert(File xWmaFile, File outputFile) throws IOException {
+						super.convert(xWmaFile, outputFile);
+						if (outputFile.exists())
+							written(id, outputFile);
+					}
+
+					@Override
+					protected boolean isExtracted(File outputFile) {
+						// Tracks written before the extraction was interrupted are not extracted again
+						if (writtenOutputs.contains(outputFile.getAbsoluteFile()) && outputFile.exists()) {
+							try {
+								written(id, outputFile);
+								return true;
+							} catch (IOException ex) {
+								Log.debug("Failed to report " + outputFile.getName() + " to coordinator", ex);
+							}
+						}
+						return false;
+					}
+				};
+				String directoryName = inputFile.getName().substring(0, inputFile.getName().lastIndexOf('.'));
+				File directory = new File(outputDirectory, directoryName);
+				directory.mkdirs();
+				xactExtractor.extract(inputFile, directory);
+			}
+			success = true;
+		} catch (Exception ex) {
+			Log.error("Failed to extract " + inputFile.getName(), ex);
+		} catch (Error error) {
+			// The state of this process can't be trusted anymore; the coordinator
+			// hands the files of this worker to other workers
+			Log.error("Worker crashed while extracting " + inputFile.getName(), error);
+			Runtime.getRuntime().halt(1);
+		}
+
+		try {
+			synchronized (output) {
+				output.writeByte(Coordinator.DONE);
+				output.writeInt(id);
+				output.writeBoolean(success);
+				output.writeUTF(hash[0] != null ? hash[0] : "");
+				for (long value : encoding)
+					output.writeLong(value);
+				output.flush();
+			}
+		} catch (IOException ex) {
+			Log.debug("Failed to report " + inputFile.getName() + " to coordinator", ex);
+		}
+	}
+
+	private void status(int id, String status) {
+		try {
+			synchronized (output) {
+				output.writeByte(Coordinator.STATUS);
+				output.writeInt(id);
+				output.writeUTF(status);
+				output.flush();
+			}
+		} catch (IOException ex) {
+			Log.debug("Failed to report status to coordinator", ex);
+		}
+	}
+
+	private void percentage(int id, float percentage) {
+		try {
+			synchronized (output) {
+				output.writeByte(Coordinator.PERCENTAGE);
+				output.writeInt(id);
+				output.writeFloat(percentage);
+				output.flush();
+			}
+		} catch (IOException ex) {
+			Log.debug("Failed to report progress to coordinator", ex);
+		}
+	}
+
+	private void written(int id, File outputFile) throws IOException {
+		synchronized (output) {
+			output.writeByte(Coordinator.OUTPUT);
+			output.writeInt(id);
+			output.writeUTF(outputFile.getAbsolutePath());
+			output.flush();
+		}
+	}
+}
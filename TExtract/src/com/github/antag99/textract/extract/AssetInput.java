@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The data of the asset an {@link AssetReader} reads, along with where
+ * to put the files it is extracted to.
+ */
+public class AssetInput {
+	private final XnbExtractor extractor;
+	private final File inputFile;
+	private final ByteBuffer buffer;
+	private final LzxDecoder decoder;
+	private final boolean transferable;
+	private final File outputDirectory;
+	private final String baseFileName;
+	private final long startTime;
+	private LzxInputStream stream;
+
+	/**
+	 * @param inputFile The XNB file
+	 * @param buffer The contents of the XNB file if not compressed, or the data of its first frame
+	 * @param decoder The decoder of the remaining frames, or null if not compressed
+	 * @param transferable Whether the buffer holds the contents of the input file as they are
+	 */
+	AssetInput(XnbExtractor extractor, File inputFile, ByteBuffer buffer, LzxDecoder decoder, boolean transferable,
+			File outputDirectory, String baseFileName, long startTime) {
+		this.extractor = extractor;
+		this.inputFile = inputFile;
+		this.buffer = buffer;
+		this.decoder = decoder;
+		this.transferable = transferable;
+		this.outputDirectory = outputDirectory;
+		this.baseFileName = baseFileName;
+		this.startTime = startTime;
+	}
+
+	public XnbExtractor getExtractor() {
+		return extractor;
+	}
+
+	/**
+	 * @return The data that is available without decompressing any further,
+	 *         which is all of it unless compressed; used for reading the
+	 *         header of the asset
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	public boolean isCompressed() {
+		return decoder != null;
+	}
+
+	/**
+	 * @return Whether the remaining data is stored as it is in the input file,
+	 *         such that it can be transferred from there, see {@link #skip(int)}
+	 */
+	public boolean isTransferable() {
+		return transferable;
+	}
+
+	/**
+	 * @return The remaining data, decompressed as it is read
+	 */
+	public InputStream getStream() {
+		if (stream == null)
+			stream = new LzxInputStream(decoder, buffer);
+		return stream;
+	}
+
+	/**
+	 * Reads data that is to be kept after the asset has been read, such as
+	 * the contents of an output file. Data of the input file is not copied;
+	 * decompressed data is, as its buffer is reused for the next file.
+	 * 
+	 * @param size The number of bytes to read
+	 * @return The data
+	 * @throws XnbException If there is not enough data left
+	 * @throws IOException If an I/O error occurs
+	 */
+	public ByteBuffer read(int size) throws XnbException, IOException {
+		if (decoder == null) {
+			if (buffer.remaining() < size)
+				throw new XnbException("unexpected end of asset data");
+			ByteBuffer data = buffer.slice();
+			data.limit(size);
+			buffer.position(buffer.position() + size);
+			if (transferable)
+				return data;
+			ByteBuffer copy = ByteBuffer.allocate(size);
+			copy.put(data);
+			copy.flip();
+			return copy;
+		}
+
+		byte[] data = new byte[size];
+		IOUtils.readFully(getStream(), data);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Skips data that is to be written to an output file as it is, such that
+	 * it can be transferred from the input file instead, see
+	 * {@link OutputFile#OutputFile(File, ByteBuffer[], File, long, long)}.
+	 * Only possible if the data is {@link #isTransferable() transferable}.
+	 * 
+	 * @param size The number of bytes to skip
+	 * @return The position of the data in the input file
+	 * @throws XnbException If there is not enough data left
+	 */
+	public long skip(int size) throws XnbException {
+		if (!transferable)
+			throw new IllegalStateException("data is not stored as it is in the input file");
+		if (buffer.remaining() < size)
+			throw new XnbException("unexpected end of asset data");
+		long position = buffer.position();
+		buffer.position(buffer.position() + size);
+		return position;
+	}
+
+	/**
+	 * @param extension The extension of the output file, without the dot
+	 * @return The output file of the given type, named after the XNB file
+	 */
+	public File getOutputFile(String extension) {
+		return new File(outputDirectory, baseFileName + "." + extension);
+	}
+
+	/**
+	 * @return The time extraction of the asset started, in {@link System#nanoTime()} units
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Outputs a file of the asset, see {@link XnbExtractor#output(OutputFile)}.
+	 * 
+	 * @param output The file to write
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void output(OutputFile output) throws IOException {
+		extractor.output(output);
+	}
+
+	/**
+	 * Reports that a texture has been encoded, see {@link XnbExtractor#encoded(long, long, long)}.
+	 */
+	public void encoded(long pixelBytes, long encodedBytes) {
+		extractor.encoded(pixelBytes, encodedBytes, System.nanoTime() - startTime);
+	}
+}
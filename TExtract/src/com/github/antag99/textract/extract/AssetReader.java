@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the primary asset of an XNB file, for the type reader it is
+ * registered for in an {@link AssetReaderRegistry}. Readers are shared
+ * between threads, and must not keep state between assets.
+ */
+public abstract class AssetReader {
+	/**
+	 * @param extractor The extractor reading the asset
+	 * @return The extension of the file written for an asset, or null if assets are ignored
+	 */
+	public abstract String getOutputFormat(XnbExtractor extractor);
+
+	/**
+	 * Estimates how expensive it is to extract an asset, such that the most
+	 * expensive files can be started first. Copying a byte costs 1.
+	 * 
+	 * @param info The asset, as read by {@link XnbExtractor#readHeader(java.io.File)}, or by
+	 *            {@link XnbExtractor#probe(java.io.File)} if the header doesn't tell its type
+	 * @return The expected cost of extracting the asset
+	 */
+	public abstract long getCost(XnbInfo info);
+
+	/**
+	 * Reads the asset, and outputs the files it is extracted to.
+	 * 
+	 * @param input The data of the asset, following the header of the primary asset
+	 * @throws XnbException If the asset was malformed or used unsupported features
+	 * @throws IOException If an I/O error occurs
+	 */
+	public abstract void read(AssetInput input) throws XnbException, IOException;
+
+	/**
+	 * Reads the properties of an asset into the info, when probing; readers
+	 * that don't override this only report the type of their assets.
+	 * 
+	 * @param buffer The data of the asset, following the header of the primary asset
+	 */
+	protected void probe(ByteBuffer buffer, XnbInfo info) {
+	}
+}
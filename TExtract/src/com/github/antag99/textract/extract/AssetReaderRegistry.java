@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps the names of XNB type readers to the {@link AssetReader}s of their
+ * assets. The default registry is used unless an {@link XnbExtractor} is
+ * given another; readers registered with it replace the built-in ones.
+ */
+public class AssetReaderRegistry {
+	// Type reader names are few, but are not trusted to be
+	private static final int MAX_CACHED_NAMES = 256;
+	private static final ConcurrentMap<String, String> strippedNames = new ConcurrentHashMap<String, String>();
+	private static final AssetReaderRegistry defaultRegistry = new AssetReaderRegistry();
+
+	static {
+		defaultRegistry.register(XnbInfo.TEXTURE_2D_READER, new Texture2DReader());
+		defaultRegistry.register(XnbInfo.SOUND_EFFECT_READER, new SoundEffectReader());
+		defaultRegistry.register(XnbInfo.SPRITE_FONT_READER, new IgnoredAssetReader());
+		defaultRegistry.register(XnbInfo.EFFECT_READER, new IgnoredAssetReader());
+	}
+
+	private final ConcurrentMap<String, AssetReader> readers = new ConcurrentHashMap<String, AssetReader>();
+
+	public AssetReaderRegistry() {
+	}
+
+	/**
+	 * @param registry The registry whose readers to start with
+	 */
+	public AssetReaderRegistry(AssetReaderRegistry registry) {
+		readers.putAll(registry.readers);
+	}
+
+	/**
+	 * @return The registry used by default, with the built-in readers
+	 */
+	public static AssetReaderRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * @param typeReaderName The name of the type reader, excluding assembly information
+	 * @param reader The reader of its assets, replacing any registered before
+	 */
+	public void register(String typeReaderName, AssetReader reader) {
+		if (typeReaderName == null || reader == null)
+			throw new IllegalArgumentException("typeReaderName and reader cannot be null");
+		readers.put(typeReaderName, reader);
+	}
+
+	/**
+	 * @param typeReaderName The name of the type reader, excluding assembly information
+	 * @return The reader of its assets, or null if there is none
+	 */
+	public AssetReader get(String typeReaderName) {
+		return readers.get(typeReaderName);
+	}
+
+	/**
+	 * Strips the assembly information type reader names might contain,
+	 * such as ", Microsoft.Xna.Framework.Graphics, Version=4.0.0.0".
+	 * 
+	 * @param typeReaderName The name of the type reader, as found in the XNB file
+	 * @return The name excluding assembly information
+	 */
+	public static String stripAssemblyInformation(String typeReaderName) {
+		String strippedName = strippedNames.get(typeReaderName);
+		if (strippedName != null)
+			return strippedName;
+
+		int assemblyInformationIndex = typeReaderName.indexOf(',');
+		strippedName = assemblyInformationIndex != -1 ? typeReaderName.substring(0, assemblyInformationIndex)
+				: typeReaderName;
+		if (strippedNames.size() < MAX_CACHED_NAMES)
+			strippedNames.put(typeReaderName, strippedName);
+		return strippedName;
+	}
+}
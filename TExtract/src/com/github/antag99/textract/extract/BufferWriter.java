@@ -49,6 +49,21 @@ class BufferWriter {
 		output.write(value);
 	}
 
+	public void writeBytes(ByteBuffer value) throws IOException {
+		flush();
+		if (value.hasArray()) {
+			output.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+		} else {
+			byte[] chunk = new byte[Math.min(value.remaining(), 8192)];
+			ByteBuffer source = value.duplicate();
+			while (source.hasRemaining()) {
+				int length = Math.min(source.remaining(), chunk.length);
+				source.get(chunk, 0, length);
+				output.write(chunk, 0, length);
+			}
+		}
+	}
+
 	public void writeInt(int value) throws IOException {
 		if (buffer.remaining() < 4)
 			flush();
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps an LZX decoder and decompression buffers for each thread, such that
+ * decompressing many small files does not allocate them over and over. The
+ * buffers are the frame buffer that compressed files are streamed through,
+ * and the buffers that deduplicated files are decompressed into as a whole.
+ * Buffers are kept in power-of-two size classes, one buffer per class;
+ * buffers larger than {@link #MAX_CACHED_SIZE} are not kept.
+ */
+public class DecoderCache {
+	/**
+	 * The size of the largest buffer that is kept for reuse.
+	 */
+	public static final int MAX_CACHED_SIZE = 1 << 22;
+	private static final int MIN_SIZE_CLASS = 12;
+
+	private static final ThreadLocal<DecoderCache> caches = new ThreadLocal<DecoderCache>() {
+		@Override
+		protected DecoderCache initialValue() {
+			return new DecoderCache();
+		}
+	};
+
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong hits = new AtomicLong();
+
+	private LzxDecoder decoder;
+	private final ByteBuffer[] buffers = new ByteBuffer[Integer.numberOfTrailingZeros(MAX_CACHED_SIZE) + 1];
+
+	private DecoderCache() {
+	}
+
+	/**
+	 * @return The cache of the current thread
+	 */
+	static DecoderCache get() {
+		return caches.get();
+	}
+
+	/**
+	 * @return The decoder of the current thread; it may only be used by one extraction at a time
+	 */
+	LzxDecoder decoder() {
+		requests.incrementAndGet();
+		if (decoder == null) {
+			decoder = new LzxDecoder();
+		} else {
+			hits.incrementAndGet();
+		}
+		return decoder;
+	}
+
+	/**
+	 * Takes a buffer out of the cache, or allocates one if there is none of the size.
+	 * 
+	 * @param size The size of the buffer
+	 * @return A little-endian buffer with the given limit, positioned at the start
+	 */
+	ByteBuffer buffer(int size) {
+		requests.incrementAndGet();
+		int sizeClass = sizeClass(size);
+
+		ByteBuffer buffer = null;
+		if (sizeClass < buffers.length) {
+			buffer = buffers[sizeClass];
+			buffers[sizeClass] = null;
+		}
+
+		if (buffer != null) {
+			hits.incrementAndGet();
+			buffer.clear();
+		} else {
+			buffer = ByteBuffer.allocate(sizeClass < buffers.length ? 1 << sizeClass : size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer obtained from {@link #buffer(int)} back to the cache. The
+	 * buffer may not be used after this, so buffers that have been handed over
+	 * to other threads are not released.
+	 * 
+	 * @param buffer The buffer
+	 */
+	void release(ByteBuffer buffer) {
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass < buffers.length && buffer.capacity() == 1 << sizeClass)
+			buffers[sizeClass] = buffer;
+	}
+
+	private static int sizeClass(int size) {
+		return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+	}
+
+	/**
+	 * @return The number of decoders and buffers that have been requested
+	 */
+	public static long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return The number of decoders and buffers that were reused
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The fraction of requested decoders and buffers that were reused
+	 */
+	public static float getHitRate() {
+		long requests = DecoderCache.requests.get();
+		return requests == 0 ? 0f : (float) hits.get() / requests;
+	}
+
+	/**
+	 * Resets the statistics of all caches.
+	 */
+	public static void resetStatistics() {
+		requests.set(0);
+		hits.set(0);
+	}
+}
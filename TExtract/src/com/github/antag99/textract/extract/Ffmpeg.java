@@ -92,17 +92,25 @@ class Ffmpeg {
 		command.add("-nostdin");
 		command.add("-ab");
 		command.add("128k");
+		// The output might not have a .wav extension
+		command.add("-f");
+		command.add("wav");
 		command.add(FilenameUtils.separatorsToSystem(FilenameUtils.normalize(output.getAbsolutePath())));
 
 		ProcessBuilder builder = new ProcessBuilder(command);
 
+		Process process = null;
 		try {
-			Process process = builder.start();
+			process = builder.start();
 			if (process.waitFor() != 0) {
 				Log.error("Ffmpeg exited with abnormal exit code: " + process.exitValue());
 			}
 			Log.debug(IOUtils.toString(process.getErrorStream()));
 			Log.debug(IOUtils.toString(process.getInputStream()));
+		} catch (InterruptedException ex) {
+			// Don't leave ffmpeg running when the extraction is cancelled
+			process.destroy();
+			Thread.currentThread().interrupt();
 		} catch (Throwable ex) {
 			Log.error("An error occured when executing ffmpeg", ex);
 		}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Reads input files for the extractors. Large files are memory-mapped and
+ * parsed in place, such that they take up page cache instead of heap; small
+ * files are read onto the heap, where mapping would cost more than it saves.
+ */
+public class InputFile {
+	/**
+	 * Files of at least this many bytes are memory-mapped.
+	 */
+	public static final long MAP_THRESHOLD = 1 << 20;
+
+	private InputFile() {
+	}
+
+	/**
+	 * @param length The length of a file
+	 * @return Whether a file of the given length is memory-mapped by {@link #read(File)}
+	 */
+	public static boolean isMapped(long length) {
+		return length >= MAP_THRESHOLD;
+	}
+
+	/**
+	 * @param file The file to read
+	 * @return A little-endian buffer with the contents of the file, positioned at the start
+	 * @throws IOException If an I/O error occurs
+	 */
+	public static ByteBuffer read(File file) throws IOException {
+		ByteBuffer buffer;
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long length = channel.size();
+			if (isMapped(length) && length <= Integer.MAX_VALUE) {
+				// The mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} else {
+				buffer = null;
+			}
+		} finally {
+			input.close();
+		}
+
+		if (buffer == null)
+			buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+}
@@ -46,8 +46,10 @@
 
 package com.github.antag99.textract.extract;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 class LzxDecoder {
 	private static final int MIN_MATCH = 2;
@@ -61,12 +63,16 @@ class LzxDecoder {
 	private static final int PRETREE_MAXSYMBOLS = PRETREE_NUM_ELEMENTS;
 	private static final int PRETREE_TABLEBITS = 6;
 	private static final int MAINTREE_MAXSYMBOLS = NUM_CHARS + 50 * 8;
-	private static final int MAINTREE_TABLEBITS = 12;
+	// See HuffTableBenchmark for other table sizes
+	private static final int MAINTREE_TABLEBITS = 10;
 	private static final int LENGTH_MAXSYMBOLS = NUM_SECONDARY_LENGTHS + 1;
-	private static final int LENGTH_TABLEBITS = 12;
+	private static final int LENGTH_TABLEBITS = 8;
 	private static final int ALIGNED_MAXSYMBOLS = ALIGNED_NUM_ELEMENTS;
 	private static final int ALIGNED_TABLEBITS = 7;
 
+	// Bytes past the end of a frame that the bit reader may read ahead
+	private static final int FRAME_PADDING = 8;
+
 	private static final int[] positionBase;
 	private static final int[] extraBits;
 
@@ -92,6 +98,9 @@ class LzxDecoder {
 		Uncompressed;
 	}
 
+	// values() copies the array on every call
+	private static final LzxBlockType[] blockTypes = LzxBlockType.values();
+
 	/** LRU offset system */
 	private int R0, R1, R2;
 
@@ -99,6 +108,20 @@ class LzxDecoder {
 	private byte[] window;
 	private int windowSize;
 	private int windowPos;
+	/**
+	 * Where the window starts in its array; the window is either the 64 KB
+	 * ring buffer of the decoder, or a range of the output that is large
+	 * enough for the whole stream, which the decoder never wraps around
+	 */
+	private int windowStart;
+	private boolean windowWraps;
+	/**
+	 * Whether the ring buffer has wrapped around; before it has, the data
+	 * before the start of the window isn't part of the stream, but left
+	 * over from the previous one
+	 */
+	private boolean windowFilled;
+	private byte[] ringWindow;
 
 	private int mainElementCount;
 
@@ -124,97 +147,185 @@ class LzxDecoder {
 	/** Whether the file header should be read */
 	private boolean readHeader = true;
 
+	/** Frames being decompressed */
+	private ByteBuffer frameInput;
+	private int framePosition;
+	private int frameEnd;
+
+	/** Reads the bits of the current frame */
+	private final LzxBuffer buffer = new LzxBuffer();
+	/** Frames of inputs that aren't backed by an array are copied here */
+	private byte[] frameData;
+
 	public LzxDecoder() {
+		this(MAINTREE_TABLEBITS, LENGTH_TABLEBITS);
+	}
+
+	/**
+	 * @param mainTableBits The number of bits decoded by the first lookup in the main tree
+	 * @param lengthTableBits The number of bits decoded by the first lookup in the length tree
+	 */
+	LzxDecoder(int mainTableBits, int lengthTableBits) {
 		preTree = new HuffTable(PRETREE_MAXSYMBOLS, PRETREE_TABLEBITS);
-		mainTree = new HuffTable(MAINTREE_MAXSYMBOLS, MAINTREE_TABLEBITS);
-		lengthTree = new HuffTable(LENGTH_MAXSYMBOLS, LENGTH_TABLEBITS);
+		mainTree = new HuffTable(MAINTREE_MAXSYMBOLS, mainTableBits, NUM_CHARS);
+		lengthTree = new HuffTable(LENGTH_MAXSYMBOLS, lengthTableBits);
 		alignedTree = new HuffTable(ALIGNED_MAXSYMBOLS, ALIGNED_TABLEBITS);
 	}
 
+	/**
+	 * Resets the state a new stream starts with. The window and the decode
+	 * tables are kept when the decoder is reused for another file: matches
+	 * that refer to window data the stream hasn't written are rejected, and
+	 * tables are rebuilt before they are used. Only the code lengths of the main
+	 * and length trees carry over from one block to the next, so only they
+	 * are cleared.
+	 */
 	private void reset() {
 		R0 = R1 = R2 = 1;
 		readHeader = true;
 		windowSize = 1 << 16;
 		// actualSize = windowSize;
-		window = new byte[windowSize];
-		Arrays.fill(window, (byte) 0xDC);
+		if (ringWindow == null)
+			ringWindow = new byte[windowSize];
+		window = ringWindow;
+		windowStart = 0;
+		windowWraps = true;
+		windowFilled = false;
 		windowPos = 0;
 		mainElementCount = NUM_CHARS + (16 << 4);
-		readHeader = true;
 		framesRead = 0;
 		blockRemaining = 0;
 		blockType = LzxBlockType.Invalid;
+		intelFileSize = 0;
 		intelCurrentPosition = 0;
 		intelStarted = false;
 
-		preTree.reset();
-		mainTree.reset();
-		lengthTree.reset();
-		alignedTree.reset();
+		mainTree.clearLengths();
+		lengthTree.clearLengths();
 	}
 
+	/**
+	 * Decompresses a whole stream. If the output is backed by an array with
+	 * room for all of the data, it is used as the window, such that frames are
+	 * decompressed right into it rather than copied from the window.
+	 * 
+	 * @param input The compressed data, positioned at the first frame
+	 * @param inputLength The length of the compressed data
+	 * @param output The buffer to put the decompressed data into
+	 * @param outputLength The length of the decompressed data
+	 */
 	public void decompress(ByteBuffer input, int inputLength,
 			ByteBuffer output, int outputLength) {
+		start(input, inputLength);
+		if (output.hasArray() && output.remaining() >= outputLength) {
+			window = output.array();
+			windowStart = output.arrayOffset() + output.position();
+			windowSize = outputLength;
+			windowWraps = false;
+			windowPos = windowStart;
+		}
+		try {
+			while (decompressFrame(output) != -1) {
+			}
+		} finally {
+			// Don't hold on to the output
+			window = ringWindow;
+		}
+	}
 
+	/**
+	 * Starts decompressing a new stream of frames, which are then decompressed
+	 * one at a time by {@link #decompressFrame(ByteBuffer)}.
+	 * 
+	 * @param input The compressed data, positioned at the first frame
+	 * @param inputLength The length of the compressed data
+	 */
+	public void start(ByteBuffer input, int inputLength) {
 		reset();
 
-		int endPosition = input.position() + inputLength;
+		frameInput = input;
+		framePosition = input.position();
+		frameEnd = framePosition + inputLength;
+	}
+
+	/**
+	 * Decompresses the next frame of the stream, putting it into the output buffer.
+	 * 
+	 * @param output The buffer to put the decompressed data into
+	 * @return The number of bytes put into the output, or -1 if there are no more
+	 *         frames, which it keeps returning once the stream has ended
+	 */
+	public int decompressFrame(ByteBuffer output) {
+		ByteBuffer input = frameInput;
+		if (input == null)
+			return -1;
+
 		// the size of the input (compressed data)
 		int blockSize;
 		// the size of the output (decompressed data)
 		int frameSize;
-		int pos = input.position();
+		int pos = framePosition;
+
+		if (input.position() >= frameEnd) {
+			// Don't hold on to the input of the last file
+			frameInput = null;
+			return -1;
+		}
 
-		while (input.position() < endPosition) {
+		// Allow the extraction to be cancelled between frames
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("decompression interrupted");
+		}
 
-			// System.out.println("pos=" + pos);
+		// System.out.println("pos=" + pos);
 
-			// seek to the correct position
-			// input.rewind();
-			input.position(pos);
+		// seek to the correct position
+		// input.rewind();
+		input.position(pos);
 
-			// System.out.println("input.position= " + input.position());
+		// System.out.println("input.position= " + input.position());
 
-			int hi, lo;
+		int hi, lo;
+		hi = input.get() & 0xFF;
+		lo = input.get() & 0xFF;
+		blockSize = (hi << 8) | lo;
+		// all blocks by default will output 32Kb of data, so thus
+		// is our frame size
+		frameSize = 0x8000;
+		// ... unless this block is special, that it outputs a different
+		// amount of data. this blocks header is identified by a 0xFF byte
+		if (hi == 0xFF)
+		{
+			// that means the lo byte was the hi byte
+			hi = lo;
+			lo = input.get() & 0xFF;
+			// ... which combined to a different output/frame size for this
+			// particular block
+			frameSize = (hi << 8) | lo;
+			// now get our block size
 			hi = input.get() & 0xFF;
 			lo = input.get() & 0xFF;
 			blockSize = (hi << 8) | lo;
-			// all blocks by default will output 32Kb of data, so thus
-			// is our frame size
-			frameSize = 0x8000;
-			// ... unless this block is special, that it outputs a different
-			// amount of data. this blocks header is identified by a 0xFF byte
-			if (hi == 0xFF)
-			{
-				// that means the lo byte was the hi byte
-				hi = lo;
-				lo = input.get() & 0xFF;
-				// ... which combined to a different output/frame size for this
-				// particular block
-				frameSize = (hi << 8) | lo;
-				// now get our block size
-				hi = input.get() & 0xFF;
-				lo = input.get() & 0xFF;
-				blockSize = (hi << 8) | lo;
-				pos += 5;
-			}
-			else {
-				pos += 2;
-			}
-
-			// System.out.println("FrameSize=" + frameSize);
-			// System.out.println("#BlockSize=" + blockSize);
+			pos += 5;
+		}
+		else {
+			pos += 2;
+		}
 
-			// either says there is nothing to decode
-			if (blockSize == 0 || frameSize == 0) {
-				// System.out.println("Done decompressing");
-				break;
-			}
+		// System.out.println("FrameSize=" + frameSize);
+		// System.out.println("#BlockSize=" + blockSize);
 
-			decompressBlock(input, blockSize, output, frameSize);
-			pos += blockSize;
+		// either says there is nothing to decode
+		if (blockSize == 0 || frameSize == 0) {
+			// System.out.println("Done decompressing");
+			frameEnd = input.position();
+			frameInput = null;
+			return -1;
 		}
 
+		decompressBlock(input, blockSize, output, frameSize);
+		framePosition = pos + blockSize;
+		return frameSize;
 	}
 
 	private void decompressBlock(ByteBuffer input, int inputLength,
@@ -223,7 +334,17 @@ class LzxDecoder {
 		int startpos = input.position();
 		int endpos = startpos + inputLength;
 
-		LzxBuffer buffer = new LzxBuffer(input);
+		LzxBuffer buffer = this.buffer;
+		if (input.hasArray()) {
+			buffer.start(input.array(), input.arrayOffset() + startpos, input.arrayOffset() + input.limit());
+		} else {
+			// Along with the bytes the bit reader reads ahead
+			int length = Math.min(inputLength + FRAME_PADDING, input.remaining());
+			if (frameData == null || frameData.length < length)
+				frameData = new byte[Math.max(length, 0x10000 + FRAME_PADDING)];
+			input.get(frameData, 0, length);
+			buffer.start(frameData, 0, length);
+		}
 
 		if (readHeader) {
 			if (buffer.readBits(1) == 1) {
@@ -240,12 +361,15 @@ class LzxDecoder {
 
 		int window_posn = windowPos;
 		int window_size = windowSize;
+		int window_start = windowStart;
+		boolean window_wraps = windowWraps;
+		boolean window_filled = windowFilled;
 		int R0 = this.R0;
 		int R1 = this.R1;
 		int R2 = this.R2;
 
 		int togo = outputLength;
-		int this_run, main_element, match_length, match_offset, length_footer, extra, verbatim_bits;
+		int this_run, main_entry, main_element, second_length, match_length, match_offset, length_footer, extra, verbatim_bits;
 		int rundest, runsrc, copy_length, aligned_bits;
 
 		// System.out.println("window_posn=" + window_posn);
@@ -263,7 +387,7 @@ class LzxDecoder {
 
 					// realign bitstream to word
 					if ((blockLength & 1) == 1) {
-						input.get();
+						buffer.skipBytes(1);
 					}
 					buffer.reset();
 				}
@@ -273,7 +397,7 @@ class LzxDecoder {
 					throw new RuntimeException("Invalid block type: " + nextBlockType);
 				}
 
-				blockType = LzxBlockType.values()[nextBlockType];
+				blockType = blockTypes[nextBlockType];
 
 				// System.out.println("New block type: " + blockType);
 
@@ -309,29 +433,10 @@ class LzxDecoder {
 					break;
 				case Uncompressed:
 					intelStarted = true; /* because we can't assume otherwise */
-					buffer.ensureBits(16); /* get up to 16 pad bits into the buffer */
-					if (buffer.getRemainingBits() > 16) {
-						input.position(input.position() - 2); /* and align the bitstream! */
-					}
-					byte hi,
-					mh,
-					ml,
-					lo;
-					lo = input.get();
-					ml = input.get();
-					mh = input.get();
-					hi = input.get();
-					R0 = (int) (lo | ml << 8 | mh << 16 | hi << 24);
-					lo = input.get();
-					ml = input.get();
-					mh = input.get();
-					hi = input.get();
-					R1 = (int) (lo | ml << 8 | mh << 16 | hi << 24);
-					lo = input.get();
-					ml = input.get();
-					mh = input.get();
-					hi = input.get();
-					R2 = (int) (lo | ml << 8 | mh << 16 | hi << 24);
+					buffer.alignForUncompressed(); /* skip the pad bits and align the bitstream! */
+					R0 = buffer.readInt();
+					R1 = buffer.readInt();
+					R2 = buffer.readInt();
 					break;
 				default:
 					throw new RuntimeException("Unknown block type " + blockType);
@@ -339,7 +444,7 @@ class LzxDecoder {
 			}
 
 			/* buffer exhaustion check */
-			if (input.position() > (startpos + inputLength))
+			if (buffer.getConsumedBits() > inputLength * 8L)
 			{
 				/*
 				 * it's possible to have a file where the next run is less than
@@ -352,8 +457,7 @@ class LzxDecoder {
 				 */
 				// System.out.println("WTF");
 
-				if (input.position() > (startpos + inputLength + 2) || buffer.getRemainingBits() < 16)
-					throw new RuntimeException();
+				throw new RuntimeException("LZX frame overrun");
 			}
 
 			while ((this_run = (int) blockRemaining) > 0 && togo > 0)
@@ -363,8 +467,11 @@ class LzxDecoder {
 				togo -= this_run;
 				blockRemaining -= this_run;
 
-				/* apply 2^x-1 mask */
-				window_posn &= window_size - 1;
+				/* wrap around the ring buffer */
+				if (window_wraps && window_posn == window_size) {
+					window_posn = 0;
+					window_filled = true;
+				}
 
 				// System.out.println("this_run= " + this_run);
 				// System.out.println("togo= " + togo);
@@ -373,7 +480,7 @@ class LzxDecoder {
 				// System.out.println("window_size= " + window_size);
 
 				/* runs can't straddle the window wraparound */
-				if ((window_posn + this_run) > window_size)
+				if ((window_posn + this_run) > window_start + window_size)
 					throw new RuntimeException("(window_posn + this_run) > window_size");
 
 				switch (blockType)
@@ -381,7 +488,8 @@ class LzxDecoder {
 				case Verbatim:
 					while (this_run > 0)
 					{
-						main_element = mainTree.readHuffSym(buffer);
+						main_entry = mainTree.readHuffEntry(buffer);
+						main_element = HuffTable.symbol(main_entry);
 						// main_element = (int)ReadHuffSym(m_state.MAINTREE_table, m_state.MAINTREE_len,
 						// LzxConstants.MAINTREE_MAXSYMBOLS, LzxConstants.MAINTREE_TABLEBITS,
 						// bitbuf);
@@ -390,6 +498,14 @@ class LzxDecoder {
 							/* literal: 0 to NUM_CHARS-1 */
 							window[window_posn++] = (byte) main_element;
 							this_run--;
+
+							/* and another one, if it was decoded by the same lookup */
+							if ((second_length = HuffTable.secondLength(main_entry)) != 0 && this_run > 0)
+							{
+								window[window_posn++] = (byte) HuffTable.secondSymbol(main_entry);
+								this_run--;
+								buffer.removeBits(second_length);
+							}
 						}
 						else
 						{
@@ -447,31 +563,31 @@ class LzxDecoder {
 
 							rundest = (int) window_posn;
 							this_run -= match_length;
+							window_posn += match_length;
 
-							/* copy any wrapped around source data */
-							if (window_posn >= match_offset)
+							if (rundest - window_start >= match_offset)
 							{
 								/* no wrap */
-								runsrc = rundest - match_offset;
+								copyMatch(window, rundest, rundest - match_offset, match_length);
 							}
 							else
 							{
+								if (!window_filled)
+									throw new RuntimeException("match offset beyond start of data");
+
+								/* copy the wrapped around source data first */
 								runsrc = rundest + ((int) window_size - match_offset);
-								copy_length = match_offset - (int) window_posn;
+								copy_length = match_offset - rundest;
 								if (copy_length < match_length)
 								{
-									match_length -= copy_length;
-									window_posn += copy_length;
-									while (copy_length-- > 0)
-										window[rundest++] = window[runsrc++];
-									runsrc = 0;
+									System.arraycopy(window, runsrc, window, rundest, copy_length);
+									copyMatch(window, rundest + copy_length, 0, match_length - copy_length);
+								}
+								else
+								{
+									System.arraycopy(window, runsrc, window, rundest, match_length);
 								}
 							}
-							window_posn += match_length;
-
-							/* copy match data - no worries about destination wraps */
-							while (match_length-- > 0)
-								window[rundest++] = window[runsrc++];
 						}
 					}
 					break;
@@ -482,7 +598,8 @@ class LzxDecoder {
 						// main_element = (int)ReadHuffSym(m_state.MAINTREE_table, m_state.MAINTREE_len,
 						// LzxConstants.MAINTREE_MAXSYMBOLS, LzxConstants.MAINTREE_TABLEBITS,
 						// bitbuf);
-						main_element = mainTree.readHuffSym(buffer);
+						main_entry = mainTree.readHuffEntry(buffer);
+						main_element = HuffTable.symbol(main_entry);
 
 						// System.err.println("main_element= " + main_element);
 						// System.err.println("this_run= " + this_run);
@@ -492,6 +609,14 @@ class LzxDecoder {
 							/* literal 0 to NUM_CHARS-1 */
 							window[window_posn++] = (byte) main_element;
 							this_run--;
+
+							/* and another one, if it was decoded by the same lookup */
+							if ((second_length = HuffTable.secondLength(main_entry)) != 0 && this_run > 0)
+							{
+								window[window_posn++] = (byte) HuffTable.secondSymbol(main_entry);
+								this_run--;
+								buffer.removeBits(second_length);
+							}
 						}
 						else
 						{
@@ -579,47 +704,45 @@ class LzxDecoder {
 
 							rundest = (int) window_posn;
 							this_run -= match_length;
+							window_posn += match_length;
 
-							/* copy any wrapped around source data */
-							if (window_posn >= match_offset)
+							if (rundest - window_start >= match_offset)
 							{
 								/* no wrap */
-								runsrc = rundest - match_offset;
+								copyMatch(window, rundest, rundest - match_offset, match_length);
 							}
 							else
 							{
+								if (!window_filled)
+									throw new RuntimeException("match offset beyond start of data");
+
+								/* copy the wrapped around source data first */
 								runsrc = rundest + ((int) window_size - match_offset);
-								copy_length = match_offset - (int) window_posn;
+								copy_length = match_offset - rundest;
 								if (copy_length < match_length)
 								{
-									match_length -= copy_length;
-									window_posn += copy_length;
-									while (copy_length-- > 0) {
-										window[rundest++] = window[runsrc++];
-									}
-									runsrc = 0;
+									System.arraycopy(window, runsrc, window, rundest, copy_length);
+									copyMatch(window, rundest + copy_length, 0, match_length - copy_length);
+								}
+								else
+								{
+									System.arraycopy(window, runsrc, window, rundest, match_length);
 								}
-							}
-							window_posn += match_length;
-
-							/* copy match data - no worries about destination wraps */
-							while (match_length-- > 0) {
-								window[rundest++] = window[runsrc++];
 							}
 						}
 					}
 					break;
 
 				case Uncompressed:
-					if ((input.position() + this_run) > endpos)
-						throw new RuntimeException("(input.position() + this_run) > endpos");
+					if ((buffer.getBytePosition() + this_run) > inputLength)
+						throw new RuntimeException("(buffer.getBytePosition() + this_run) > inputLength");
 
 					// byte[] temp_buffer = new byte[this_run];
 					// inData.Read(temp_buffer, 0, this_run);
 					// temp_buffer.CopyTo(window, (int)window_posn);
 
 					// input.get(window, window_posn, window.length - window_posn);
-					input.get(window, window_posn, this_run);
+					buffer.readBytes(window, window_posn, this_run);
 					window_posn += this_run;
 					break;
 
@@ -632,22 +755,26 @@ class LzxDecoder {
 		if (togo != 0)
 			throw new RuntimeException("togo != 0");
 
-		int start_window_pos = (int) window_posn;
+		input.position(endpos);
 
-		if (start_window_pos == 0) {
-			start_window_pos = (int) window_size;
-		}
+		if (window_wraps) {
+			int start_window_pos = (int) window_posn;
 
-		start_window_pos -= outputLength;
+			if (start_window_pos == 0) {
+				start_window_pos = (int) window_size;
+			}
 
-		// System.out.println("start_window_pos= " + start_window_pos);
-		// System.out.println("outputLength= " + outputLength);
-		// System.out.println("input.position= " + input.position());
+			start_window_pos -= outputLength;
 
-		output.put(window, start_window_pos, outputLength);
-		// outData.Write(window, start_window_pos, outLen);
+			output.put(window, start_window_pos, outputLength);
+			// outData.Write(window, start_window_pos, outLen);
+		} else {
+			// Already decompressed into the output
+			output.position(output.position() + outputLength);
+		}
 
 		this.windowPos = window_posn;
+		this.windowFilled = window_filled;
 		this.R0 = R0;
 		this.R1 = R1;
 		this.R2 = R2;
@@ -681,6 +808,26 @@ class LzxDecoder {
 		// return 0;
 	}
 
+	/**
+	 * Copies a match within the window. A source less than the length of the
+	 * match behind the destination overlaps it, and then repeats the bytes
+	 * between them, like a forward byte by byte copy would.
+	 */
+	private static void copyMatch(byte[] window, int destination, int source, int length) {
+		int distance = destination - source;
+		if (distance >= length || distance <= 0) {
+			// No overlap, or the source is ahead, where copying forward is the same as moving
+			System.arraycopy(window, source, window, destination, length);
+		} else if (distance == 1) {
+			Arrays.fill(window, destination, destination + length, window[source]);
+		} else {
+			// The pattern doubles with every copy
+			System.arraycopy(window, source, window, destination, distance);
+			for (int copied = distance; copied < length; copied <<= 1)
+				System.arraycopy(window, destination, window, destination + copied, Math.min(copied, length - copied));
+		}
+	}
+
 	private void readLengths(byte[] lens, int first, int last, LzxBuffer buffer)
 	{
 		int x, y;
@@ -736,143 +883,243 @@ class LzxDecoder {
 	}
 }
 
+/**
+ * A Huffman code, decoded with a lookup table of the first {@code tableBits}
+ * bits of a code. Each entry holds the symbol and the length of its code;
+ * longer codes point to a subtable, indexed by the remaining bits up to the
+ * maximum code length. Entries of literal symbols whose code leaves room for
+ * another literal code in the table bits hold that literal as well, such
+ * that runs of literals are decoded two at a time.
+ */
 class HuffTable {
-	private short[] table;
-	private byte[] length;
-
-	private int maxSymbols;
-	private int tableBits;
-
+	private static final int MAX_CODE_LENGTH = 16;
 	private static final int SAFETY = 64;
 
+	// Entry layout: the length of the code in the lowest 5 bits, zero if
+	// there is no such code, followed by the symbol; then the second literal
+	// and its code length. If LONG is set, the start of the subtable follows
+	// the number of bits it is indexed by instead
+	private static final int LENGTH_MASK = 0x1f;
+	private static final int SYMBOL_SHIFT = 5;
+	private static final int SYMBOL_MASK = 0x3ff;
+	private static final int SUBTABLE_MASK = 0x3fffff;
+	private static final int SECOND_SHIFT = 15;
+	private static final int SECOND_LENGTH_SHIFT = 23;
+	private static final int LONG = 1 << 27;
+
+	// Grows with the subtables that the codes of a block need
+	private int[] table;
+	private final byte[] length;
+	private final int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+	private final int[] offsets = new int[MAX_CODE_LENGTH + 2];
+	private final short[] sortedSymbols;
+	private final int[] codes;
+
+	private final int maxSymbols;
+	private final int tableBits;
+	private final int pairedSymbols;
+
+	/**
+	 * @param maxSymbols The number of symbols
+	 * @param tableBits The number of bits decoded by the first lookup
+	 */
 	public HuffTable(int maxSymbols, int tableBits) {
+		this(maxSymbols, tableBits, 0);
+	}
+
+	/**
+	 * @param maxSymbols The number of symbols
+	 * @param tableBits The number of bits decoded by the first lookup
+	 * @param pairedSymbols The number of literal symbols, which may be decoded two at a time
+	 */
+	public HuffTable(int maxSymbols, int tableBits, int pairedSymbols) {
 		this.maxSymbols = maxSymbols;
 		this.tableBits = tableBits;
-		table = new short[(1 << tableBits) + (maxSymbols << 1)];
+		this.pairedSymbols = pairedSymbols;
+		table = new int[1 << tableBits];
 		length = new byte[maxSymbols + SAFETY];
+		sortedSymbols = new short[maxSymbols];
+		codes = new int[maxSymbols];
 	}
 
 	public int getMaxSymbols() {
 		return maxSymbols;
 	}
 
+	/**
+	 * Builds the decode table from the code lengths. The codes are assigned
+	 * in the canonical order, by length and then by symbol.
+	 */
 	public void makeDecodeTable() {
-		short sym;
-		int leaf;
-		byte bit_num = 1;
-		int fill;
-		int pos = 0; /* the current position in the decode table */
-		int table_mask = (1 << (int) tableBits);
-		int bit_mask = table_mask >>> 1; /* don't do 0 length codes */
-		int next_symbol = bit_mask; /* base of allocation for long codes */
-
-		/* fill entries for codes short enough for a direct mapping */
-		while (bit_num <= tableBits)
-		{
-			for (sym = 0; sym < maxSymbols; sym++)
-			{
-				if (length[sym] == bit_num)
-				{
-					leaf = pos;
-
-					if ((pos += bit_mask) > table_mask)
-						return;// 1; /* table overrun */
-
-					/* fill all possible lookups of this symbol with the symbol itself */
-					fill = bit_mask;
-					while (fill-- > 0)
-						table[leaf++] = sym;
-				}
-			}
-			bit_mask >>>= 1;
-			bit_num++;
+		int[] lengthCounts = this.lengthCounts;
+		int[] offsets = this.offsets;
+		Arrays.fill(lengthCounts, 0);
+		for (int sym = 0; sym < maxSymbols; sym++)
+			lengthCounts[length[sym]]++;
+
+		int left = 1;
+		offsets[1] = 0;
+		for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+			left = (left << 1) - lengthCounts[len];
+			if (left < 0)
+				throw new RuntimeException("over-subscribed Huffman code");
+			offsets[len + 1] = offsets[len] + lengthCounts[len];
 		}
 
-		/* if there are any codes longer than tableBits */
-		if (pos != table_mask)
-		{
-			/* clear the remainder of the table */
-			for (sym = (short) pos; sym < table_mask; sym++)
-				table[sym] = 0;
+		// Symbols by length and then by symbol, which is the order of their codes
+		for (int sym = 0; sym < maxSymbols; sym++) {
+			int len = length[sym];
+			if (len != 0)
+				sortedSymbols[offsets[len]++] = (short) sym;
+		}
 
-			/* give ourselves room for codes to grow by up to 16 more bits */
-			pos <<= 16;
-			table_mask <<= 16;
-			bit_mask = 1 << 15;
+		// The codes, in the same order
+		int[] codes = this.codes;
+		int code = 0;
+		int count = 0;
+		int shortCount = 0;
+		for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+			for (int end = count + lengthCounts[len]; count < end; count++)
+				codes[count] = code++;
+			if (len == tableBits)
+				shortCount = count;
+			code <<= 1;
+		}
 
-			while (bit_num <= 16)
-			{
-				for (sym = 0; sym < maxSymbols; sym++)
-				{
-					if (length[sym] == bit_num)
-					{
-						leaf = pos >>> 16;
-						for (fill = 0; fill < bit_num - tableBits; fill++)
-						{
-							/* if this path hasn't been taken yet, 'allocate' two entries */
-							if (table[leaf] == 0)
-							{
-								table[(next_symbol << 1)] = 0;
-								table[(next_symbol << 1) + 1] = 0;
-								table[leaf] = (short) (next_symbol++);
-							}
-							/* follow the path and select either left or right for next bit */
-							leaf = (table[leaf] << 1);
-							if (((pos >>> (int) (15 - fill)) & 1) == 1)
-								leaf++;
-						}
-						table[leaf] = sym;
+		// Longer codes with the same first bits are adjacent, the longest last; the
+		// subtable of those bits is indexed by as many bits as the longest needs
+		int tableSize = 1 << tableBits;
+		int size = tableSize;
+		for (int i = shortCount; i < count;) {
+			int end = subtableEnd(i, count);
+			size += 1 << (length[sortedSymbols[end - 1]] - tableBits);
+			i = end;
+		}
+		if (table.length < size)
+			table = new int[size];
+		int[] table = this.table;
+
+		// Codes that aren't assigned are invalid, which only matters if some aren't
+		if (left != 0)
+			Arrays.fill(table, 0, size, 0);
+
+		for (int i = 0; i < shortCount; i++) {
+			int sym = sortedSymbols[i];
+			int len = length[sym];
+			int start = codes[i] << (tableBits - len);
+			Arrays.fill(table, start, start + (1 << (tableBits - len)), sym << SYMBOL_SHIFT | len);
+		}
 
-						if ((pos += bit_mask) > table_mask)
-							return;// 1;
-					}
-				}
-				bit_mask >>>= 1;
-				bit_num++;
+		int subtable = tableSize;
+		for (int i = shortCount; i < count;) {
+			int end = subtableEnd(i, count);
+			int bits = length[sortedSymbols[end - 1]] - tableBits;
+			table[codes[i] >>> (length[sortedSymbols[i]] - tableBits)] = LONG | subtable << SYMBOL_SHIFT | bits;
+			for (; i < end; i++) {
+				int sym = sortedSymbols[i];
+				int len = length[sym];
+				int start = subtable + ((codes[i] << (tableBits + bits - len)) & ((1 << bits) - 1));
+				Arrays.fill(table, start, start + (1 << (tableBits + bits - len)), sym << SYMBOL_SHIFT | len);
 			}
+			subtable += 1 << bits;
 		}
 
-		/* full talbe? */
-		if (pos == table_mask)
-			return;// 0;
-
-		/* either erroneous table, or all elements are 0 - let's find out. */
-		for (sym = 0; sym < maxSymbols; sym++)
-			if (length[sym] != 0)
-				return;// 1;
+		if (pairedSymbols > 0)
+			pairLiterals();
 	}
 
-	public int readHuffSym(LzxBuffer buffer)
-	{
-		int i, j;
-		buffer.ensureBits(16);
-		if ((i = table[buffer.peekBits((byte) tableBits)]) >= maxSymbols)
-		{
-			j = (int) (1 << (int) ((4 * 8) - tableBits));
-			do
-			{
-				j >>>= 1;
-				i <<= 1;
-				i |= (buffer.getBitBuffer() & j) != 0 ? (int) 1 : 0;
+	/**
+	 * @return The end of the codes longer than the table bits that start with
+	 *         the same bits as the code at the given index
+	 */
+	private int subtableEnd(int i, int count) {
+		int prefix = codes[i] >>> (length[sortedSymbols[i]] - tableBits);
+		int end = i + 1;
+		while (end < count && codes[end] >>> (length[sortedSymbols[end]] - tableBits) == prefix)
+			end++;
+		return end;
+	}
 
-				if (j == 0)
-					throw new RuntimeException(); // return 0;
+	/**
+	 * Adds a second literal to the entries of literals whose code leaves
+	 * enough of the table bits to hold the code of another literal.
+	 */
+	private void pairLiterals() {
+		int[] table = this.table;
+		int tableSize = 1 << tableBits;
+		for (int i = 0; i < tableSize; i++) {
+			int entry = table[i];
+			int len = entry & LENGTH_MASK;
+			if ((entry & LONG) != 0 || len == 0 || len >= tableBits
+					|| ((entry >>> SYMBOL_SHIFT) & SYMBOL_MASK) >= pairedSymbols)
+				continue;
+
+			// The bits that follow the code, of which only the first tableBits - len are known
+			int second = table[(i << len) & (tableSize - 1)];
+			int secondLength = second & LENGTH_MASK;
+			if ((second & LONG) != 0 || secondLength == 0 || len + secondLength > tableBits)
+				continue;
+			int secondSymbol = (second >>> SYMBOL_SHIFT) & SYMBOL_MASK;
+			if (secondSymbol >= pairedSymbols)
+				continue;
+
+			table[i] = (entry & ((1 << SECOND_SHIFT) - 1)) | secondSymbol << SECOND_SHIFT
+					| secondLength << SECOND_LENGTH_SHIFT;
+		}
+	}
 
-			} while ((i = table[i]) >= maxSymbols);
+	/**
+	 * Reads the entry of the next code, and removes the bits of its first symbol.
+	 * 
+	 * @return The entry; see {@link #symbol(int)} and {@link #secondLength(int)}
+	 */
+	public int readHuffEntry(LzxBuffer buffer) {
+		buffer.ensureBits(MAX_CODE_LENGTH);
+		int bits = buffer.peekBits(MAX_CODE_LENGTH);
+		int entry = table[bits >>> (MAX_CODE_LENGTH - tableBits)];
+		if ((entry & LONG) != 0) {
+			int subtableBits = entry & LENGTH_MASK;
+			entry = table[((entry >>> SYMBOL_SHIFT) & SUBTABLE_MASK)
+					+ ((bits >>> (MAX_CODE_LENGTH - tableBits - subtableBits)) & ((1 << subtableBits) - 1))];
 		}
-		j = length[i];
-		buffer.removeBits((byte) j);
 
-		return i;
+		int len = entry & LENGTH_MASK;
+		if (len == 0)
+			throw new RuntimeException("invalid Huffman code");
+		buffer.removeBits(len);
+		return entry;
 	}
 
-	public void reset() {
-		Arrays.fill(table, (short) 0);
-		Arrays.fill(length, (byte) 0);
+	public int readHuffSym(LzxBuffer buffer) {
+		return symbol(readHuffEntry(buffer));
+	}
+
+	/**
+	 * @return The first symbol of an entry
+	 */
+	public static int symbol(int entry) {
+		return (entry >>> SYMBOL_SHIFT) & SYMBOL_MASK;
 	}
 
-	public short[] getTable() {
-		return table;
+	/**
+	 * @return The code length of the second literal of an entry, or zero if it has none
+	 */
+	public static int secondLength(int entry) {
+		return entry >>> SECOND_LENGTH_SHIFT & 0xf;
+	}
+
+	/**
+	 * @return The second literal of an entry that has one
+	 */
+	public static int secondSymbol(int entry) {
+		return (entry >>> SECOND_SHIFT) & 0xff;
+	}
+
+	/**
+	 * Clears the code lengths, which the lengths of the next block are encoded relative to.
+	 */
+	public void clearLengths() {
+		Arrays.fill(length, (byte) 0);
 	}
 
 	public byte[] getLength() {
@@ -880,40 +1127,67 @@ class HuffTable {
 	}
 }
 
+/**
+ * Reads the bits of an LZX frame, which are stored as little-endian 16-bit
+ * words, most significant bit first. Up to 64 bits are buffered, and whole
+ * words are loaded from a byte array until at least 48 bits are.
+ */
 class LzxBuffer {
-	private ByteBuffer byteBuffer;
-	private int remainingBits = 0;
-	private int bitBuffer = 0;
-
-	public LzxBuffer(ByteBuffer buffer) {
-		this.byteBuffer = buffer;
+	private byte[] data;
+	private int start;
+	private int position;
+	private int limit;
+	// The next bit is the most significant
+	private long bitBuffer;
+	private int remainingBits;
+
+	/**
+	 * Starts reading a frame.
+	 * 
+	 * @param data The data of the frame
+	 * @param offset The offset of the frame in the data
+	 * @param limit The end of the valid data, which may extend past the frame; bytes past it are read as zero
+	 */
+	public void start(byte[] data, int offset, int limit) {
+		this.data = data;
+		this.start = offset;
+		this.position = offset;
+		this.limit = limit;
+		reset();
 	}
 
+	/**
+	 * Discards the buffered bits, such that reading continues at the current byte position.
+	 */
 	public void reset() {
 		remainingBits = 0;
 		bitBuffer = 0;
 	}
 
 	public void ensureBits(int bitCount) {
-		if (bitCount < 0 || bitCount > 32) {
-			throw new IllegalArgumentException(Integer.toString(bitCount));
-		}
+		if (remainingBits < bitCount)
+			fill();
+	}
 
-		while (remainingBits < bitCount) {
-			int lo = byteBuffer.get() & 0xff;
-			int hi = byteBuffer.get() & 0xff;
-			bitBuffer |= ((hi << 8) | lo) << (4 * 8 - 16 - remainingBits);
+	private void fill() {
+		while (remainingBits <= 48) {
+			int word;
+			if (position + 1 < limit) {
+				word = (data[position] & 0xff) | (data[position + 1] & 0xff) << 8;
+			} else {
+				word = position < limit ? data[position] & 0xff : 0;
+			}
+			bitBuffer |= (long) word << (48 - remainingBits);
 			remainingBits += 16;
+			position += 2;
 		}
 	}
 
+	/**
+	 * @param bitCount The number of bits, between 1 and 32; they must have been ensured
+	 */
 	public int peekBits(int bitCount) {
-		if (bitCount > remainingBits) {
-			throw new IllegalArgumentException("Not enough bits: required "
-					+ bitCount + " has " + remainingBits);
-		}
-
-		return (bitBuffer >>> (32 - bitCount));
+		return (int) (bitBuffer >>> (64 - bitCount));
 	}
 
 	public void removeBits(int bitCount) {
@@ -922,22 +1196,70 @@ class LzxBuffer {
 	}
 
 	public int readBits(int bitCount) {
-		int result = 0;
-
-		if (bitCount > 0) {
-			ensureBits(bitCount);
-			result = peekBits(bitCount);
-			removeBits(bitCount);
-		}
+		if (bitCount == 0)
+			return 0;
 
+		ensureBits(bitCount);
+		int result = (int) (bitBuffer >>> (64 - bitCount));
+		bitBuffer <<= bitCount;
+		remainingBits -= bitCount;
 		return result;
 	}
 
-	public int getBitBuffer() {
+	/**
+	 * @return The buffered bits, the next bit being the most significant
+	 */
+	public long getBitBuffer() {
 		return bitBuffer;
 	}
 
 	public int getRemainingBits() {
 		return remainingBits;
 	}
+
+	/**
+	 * @return The number of bits read since the start of the frame
+	 */
+	public long getConsumedBits() {
+		return (position - start) * 8L - remainingBits;
+	}
+
+	/**
+	 * Skips the 1 to 16 bits that pad the bitstream to the next word before
+	 * the header of an uncompressed block, and discards the buffered bits;
+	 * the block is then read byte by byte.
+	 */
+	public void alignForUncompressed() {
+		// Buffered words that have not been started on are read again
+		position -= ((remainingBits + 15) >> 4) * 2 - 2;
+		reset();
+	}
+
+	/**
+	 * @return The position of the next byte, relative to the start of the frame;
+	 *         only meaningful when no bits are buffered
+	 */
+	public int getBytePosition() {
+		return position - start;
+	}
+
+	public void skipBytes(int count) {
+		position += count;
+	}
+
+	public int readInt() {
+		if (position + 4 > limit)
+			throw new BufferUnderflowException();
+		int result = (data[position] & 0xff) | (data[position + 1] & 0xff) << 8
+				| (data[position + 2] & 0xff) << 16 | (data[position + 3] & 0xff) << 24;
+		position += 4;
+		return result;
+	}
+
+	public void readBytes(byte[] destination, int offset, int length) {
+		if (position + length > limit)
+			throw new BufferUnderflowException();
+		System.arraycopy(data, position, destination, offset, length);
+		position += length;
+	}
 }
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the decompressed data of an LZX stream one frame at a time, such
+ * that the whole of the data never has to be in memory. Starts with the
+ * data that remains in the frame buffer.
+ */
+class LzxInputStream extends InputStream {
+	private final LzxDecoder decoder;
+	private final ByteBuffer frame;
+
+	/**
+	 * @param decoder The decoder of the stream, or null if the data is not compressed
+	 * @param frame The buffer to decompress frames into, holding the data to read first
+	 *            between its position and limit; at least 64 KB large
+	 */
+	public LzxInputStream(LzxDecoder decoder, ByteBuffer frame) {
+		this.decoder = decoder;
+		this.frame = frame;
+	}
+
+	private boolean fill() {
+		if (frame.hasRemaining())
+			return true;
+		if (decoder == null)
+			return false;
+
+		frame.clear();
+		int frameSize = decoder.decompressFrame(frame);
+		frame.flip();
+		return frameSize != -1;
+	}
+
+	@Override
+	public int read() {
+		return fill() ? frame.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+
+		int count = Math.min(len, frame.remaining());
+		frame.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return frame.remaining();
+	}
+}
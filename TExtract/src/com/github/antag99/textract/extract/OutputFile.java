@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+
+import com.esotericsoftware.minlog.Log;
+
+/**
+ * A file produced by an extractor, kept in memory until it is written. This
+ * allows the extractors to hand the disk writes over to another thread.
+ */
+public class OutputFile {
+	// Heap buffers are copied to a temporary direct buffer by gather writes, which is kept around
+	private static final int GATHER_COPY_LIMIT = 1 << 16;
+
+	private final File file;
+	private final ByteBuffer[] contents;
+	private final File source;
+	private final long sourcePosition;
+	private final long sourceLength;
+
+	/**
+	 * @param file The file to write
+	 * @param contents The contents of the file, from position to limit of each buffer
+	 */
+	public OutputFile(File file, ByteBuffer... contents) {
+		this(file, contents, null, 0, 0);
+	}
+
+	/**
+	 * @param file The file to write
+	 * @param contents The start of the contents of the file, from position to limit of each buffer
+	 * @param source The file to transfer the rest of the contents from, without
+	 *            copying them through user space; or null if there is no rest
+	 * @param sourcePosition The position of the rest of the contents in the source file
+	 * @param sourceLength The length of the rest of the contents
+	 */
+	public OutputFile(File file, ByteBuffer[] contents, File source, long sourcePosition, long sourceLength) {
+		this.file = file;
+		this.contents = contents;
+		this.source = source;
+		this.sourcePosition = sourcePosition;
+		this.sourceLength = source != null ? sourceLength : 0;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of bytes that will be written
+	 */
+	public long getSize() {
+		long size = sourceLength;
+		for (ByteBuffer content : contents)
+			size += content.remaining();
+		return size;
+	}
+
+	/**
+	 * Writes the contents to the file, creating parent directories as needed.
+	 * The contents are written to a temporary file first, which replaces the
+	 * file once complete; an interrupted write never leaves a partial file,
+	 * and a failed one removes the temporary file.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void write() throws IOException {
+		File temporaryFile = temporaryFile(file);
+		try {
+			writeContents(temporaryFile);
+			replace(temporaryFile, file);
+		} catch (IOException | RuntimeException ex) {
+			deleteTemporaryFile(temporaryFile);
+			throw ex;
+		}
+	}
+
+	private void writeContents(File temporaryFile) throws IOException {
+		FileOutputStream output = FileUtils.openOutputStream(temporaryFile);
+		try {
+			FileChannel channel = output.getChannel();
+			if (isGatherable()) {
+				// Written by as few system calls as possible
+				ByteBuffer[] duplicates = new ByteBuffer[contents.length];
+				long remaining = 0;
+				for (int i = 0; i < contents.length; i++) {
+					duplicates[i] = contents[i].duplicate();
+					remaining += duplicates[i].remaining();
+				}
+				while (remaining > 0)
+					remaining -= channel.write(duplicates);
+			} else {
+				for (ByteBuffer content : contents) {
+					if (content.hasArray()) {
+						output.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+					} else {
+						ByteBuffer duplicate = content.duplicate();
+						while (duplicate.hasRemaining())
+							channel.write(duplicate);
+					}
+				}
+			}
+			if (source != null)
+				transfer(channel);
+		} finally {
+			output.close();
+		}
+	}
+
+	private boolean isGatherable() {
+		if (contents.length < 2)
+			return false;
+		for (ByteBuffer content : contents) {
+			if (!content.isDirect() && content.remaining() > GATHER_COPY_LIMIT)
+				return false;
+		}
+		return true;
+	}
+
+	private void transfer(FileChannel channel) throws IOException {
+		FileInputStream input = new FileInputStream(source);
+		try {
+			FileChannel sourceChannel = input.getChannel();
+			long position = sourcePosition;
+			long remaining = sourceLength;
+			while (remaining > 0) {
+				long count = sourceChannel.transferTo(position, remaining, channel);
+				if (count <= 0)
+					throw new IOException("unexpected end of " + source.getName());
+				position += count;
+				remaining -= count;
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Creates a file with the same contents as another, replacing it like
+	 * {@link #write()} does.
+	 * 
+	 * @param source The file to duplicate
+	 * @param file The file to create
+	 * @param link Whether to create a hard link to the source; it is copied
+	 *            where the file system doesn't support hard links
+	 * @throws IOException If an I/O error occurs
+	 */
+	public static void duplicate(File source, File file, boolean link) throws IOException {
+		File temporaryFile = temporaryFile(file);
+		Files.deleteIfExists(temporaryFile.toPath());
+		if (link) {
+			try {
+				Files.createLink(temporaryFile.toPath(), source.toPath());
+				replace(temporaryFile, file);
+				return;
+			} catch (UnsupportedOperationException | IOException ex) {
+				Log.debug("Failed to link " + file.getName() + "; copying it instead", ex);
+				Files.deleteIfExists(temporaryFile.toPath());
+			}
+		}
+		try {
+			Files.copy(source.toPath(), temporaryFile.toPath());
+			replace(temporaryFile, file);
+		} catch (IOException ex) {
+			deleteTemporaryFile(temporaryFile);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Deletes the temporary file of a failed write, such that no partial
+	 * file is left behind; a failure to do so is only logged, as the
+	 * failure of the write is what gets reported.
+	 */
+	private static void deleteTemporaryFile(File temporaryFile) {
+		try {
+			Files.deleteIfExists(temporaryFile.toPath());
+		} catch (IOException ex) {
+			Log.warn("Failed to delete " + temporaryFile.getName(), ex);
+		}
+	}
+
+	/**
+	 * @param file The file to write
+	 * @return The file to write to before replacing the given file
+	 */
+	static File temporaryFile(File file) {
+		return new File(file.getPath() + ".part");
+	}
+
+	/**
+	 * Replaces a file with a completely written temporary file, atomically where supported.
+	 * 
+	 * @param temporaryFile The temporary file
+	 * @param file The file to replace
+	 * @throws IOException If an I/O error occurs
+	 */
+	static void replace(File temporaryFile, File file) throws IOException {
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGBA PNG images, deflating groups of rows in parallel like
+ * pigz does. Rows are filtered as they are written, and each group is
+ * deflated on its own with the last 32 KB of the previous group as preset
+ * dictionary; the groups are flushed to a byte boundary and joined into a
+ * single zlib stream. Worthwhile for large images only, see
+ * {@link #isWorthwhile(int, int)}.
+ */
+class ParallelPngWriter {
+	/**
+	 * Images of at least this many pixels are deflated in parallel.
+	 */
+	public static final int PIXEL_THRESHOLD = 1 << 20;
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final int GROUP_SIZE = 1 << 18;
+	private static final int DICTIONARY_SIZE = 1 << 15;
+
+	private static final int threads = Runtime.getRuntime().availableProcessors();
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+			10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Deflater-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private final DataOutputStream output;
+	private final int rowSize;
+	private final int rowsPerGroup;
+	private final int compressionLevel;
+	private final int deflaterStrategy;
+	private final int filterType;
+	private final PngFilter filter;
+
+	// Filtered data of the group being filled, each row preceded by its filter type
+	private byte[] group;
+	private int groupRows;
+	private byte[] dictionary;
+	private byte[] previousRow;
+	private final Adler32 adler = new Adler32();
+
+	// Groups being deflated, in order
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private boolean headerWritten;
+
+	/**
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @return Whether the image is large enough to be written by this writer
+	 */
+	public static boolean isWorthwhile(int width, int height) {
+		return (long) width * height >= PIXEL_THRESHOLD;
+	}
+
+	/**
+	 * @param output The stream to write the PNG image to
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param compressionLevel The deflate level
+	 * @param deflaterStrategy The deflate strategy, see {@link Deflater#setStrategy(int)}
+	 * @param filterType The PNG filter type, or {@link PngFilter#ADAPTIVE}
+	 * @throws IOException If an I/O error occurs
+	 */
+	public ParallelPngWriter(OutputStream output, int width, int height, int compressionLevel, int deflaterStrategy,
+			int filterType) throws IOException {
+		this.output = new DataOutputStream(output);
+		this.rowSize = width * BYTES_PER_PIXEL;
+		this.rowsPerGroup = Math.max(1, GROUP_SIZE / (rowSize + 1));
+		this.compressionLevel = compressionLevel;
+		this.deflaterStrategy = deflaterStrategy;
+		this.filterType = filterType;
+		this.filter = new PngFilter(rowSize);
+		this.previousRow = new byte[rowSize];
+
+		this.output.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream headerOutput = new DataOutputStream(header);
+		headerOutput.writeInt(width);
+		headerOutput.writeInt(height);
+		headerOutput.writeByte(8); // Bit depth
+		headerOutput.writeByte(6); // Color type: RGBA
+		headerOutput.writeByte(0); // Compression method
+		headerOutput.writeByte(0); // Filter method
+		headerOutput.writeByte(0); // Interlace method
+		writeChunk("IHDR", header.toByteArray());
+	}
+
+	/**
+	 * @param row The pixels of the next row; copied, such that it can be reused afterwards
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void writeRow(byte[] row) throws IOException {
+		if (group == null)
+			group = new byte[rowsPerGroup * (rowSize + 1)];
+
+		byte[] filtered = filter.filter(row, previousRow, filterType);
+		System.arraycopy(filtered, 0, group, groupRows * (rowSize + 1), rowSize + 1);
+		System.arraycopy(row, 0, previousRow, 0, rowSize);
+		groupRows++;
+
+		if (groupRows == rowsPerGroup)
+			submitGroup(false);
+	}
+
+	/**
+	 * Finishes the image.
+	 * 
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void end() throws IOException {
+		submitGroup(true);
+		while (!pending.isEmpty())
+			writeGroup();
+
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream(4);
+		new DataOutputStream(trailer).writeInt((int) adler.getValue());
+		writeChunk("IDAT", trailer.toByteArray());
+		writeChunk("IEND", new byte[0]);
+		output.flush();
+	}
+
+	private void submitGroup(final boolean last) throws IOException {
+		final byte[] data = group != null ? group : new byte[0];
+		final int length = groupRows * (rowSize + 1);
+		final byte[] dictionary = this.dictionary;
+		adler.update(data, 0, length);
+
+		// The tail of this group is the dictionary of the next
+		if (length > 0) {
+			int dictionaryLength = Math.min(DICTIONARY_SIZE, length);
+			this.dictionary = Arrays.copyOfRange(data, length - dictionaryLength, length);
+		}
+		group = null;
+		groupRows = 0;
+
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflate(data, length, dictionary, last, compressionLevel, deflaterStrategy);
+			}
+		}));
+
+		// Keeps the number of groups in memory bounded
+		while (pending.size() > threads * 2)
+			writeGroup();
+	}
+
+	private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last, int compressionLevel,
+			int deflaterStrategy) {
+		Deflater deflater = new Deflater(compressionLevel, true);
+		try {
+			deflater.setStrategy(deflaterStrategy);
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(data, 0, length);
+
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+			byte[] buffer = new byte[1 << 16];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					compressed.write(buffer, 0, count);
+				}
+			} else {
+				// Ends the group on a byte boundary, without ending the stream.
+				// The first call may only apply the strategy, hence needsInput()
+				int count;
+				do {
+					count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, count);
+				} while (count == buffer.length || !deflater.needsInput());
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeGroup() throws IOException {
+		Future<byte[]> future = pending.poll();
+		byte[] compressed;
+		try {
+			compressed = future.get();
+		} catch (InterruptedException e) {
+			for (Future<byte[]> other : pending)
+				other.cancel(true);
+			pending.clear();
+			Thread.currentThread().interrupt();
+			throw new CancellationException("deflate interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to deflate image data", e.getCause());
+		}
+
+		if (!headerWritten) {
+			// zlib header: deflate with a 32 KB window, and the level for informational purposes
+			byte[] withHeader = new byte[compressed.length + 2];
+			withHeader[0] = 0x78;
+			withHeader[1] = (byte) (compressionLevel < 2 ? 0x01 : compressionLevel < 6 ? 0x5e
+					: compressionLevel == 6 ? 0x9c : 0xda);
+			System.arraycopy(compressed, 0, withHeader, 2, compressed.length);
+			compressed = withHeader;
+			headerWritten = true;
+		}
+		writeChunk("IDAT", compressed);
+	}
+
+	private void writeChunk(String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		output.writeInt(data.length);
+		output.write(typeBytes);
+		output.write(data);
+		output.writeInt((int) crc.getValue());
+	}
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.IOUtils;
+
+import ar.com.hjg.pngj.FilterType;
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.ImageLineByte;
+import ar.com.hjg.pngj.PngWriter;
+
+/**
+ * Encodes 8-bit RGBA images as PNG, with the settings of a {@link PngProfile}.
+ */
+class PngEncoder {
+	private static final int BYTES_PER_PIXEL = 4;
+	// Adaptive sampling
+	private static final int SAMPLE_BANDS = 4;
+	private static final int SAMPLE_BAND_ROWS = 8;
+	// Images smaller than this are encoded before sampling would pay off
+	private static final int MIN_SAMPLE_SIZE = 1 << 14;
+	// The sample is taken from the first rows, up to this many bytes of them, which are read ahead
+	private static final int MAX_SAMPLE_PREFIX = 1 << 20;
+	private static final int[] SAMPLE_FILTERS = { PngFilter.NONE, PngFilter.SUB, PngFilter.UP,
+			PngFilter.AVERAGE, PngFilter.PAETH, PngFilter.ADAPTIVE };
+	// A lower level is used if its output is at most this much larger than that of a higher one
+	private static final double LEVEL_TOLERANCE = 1.02;
+
+	private final PngProfile profile;
+	private final int width;
+	private final int height;
+	private final int rowSize;
+
+	private int compressionLevel;
+	private int deflaterStrategy;
+	private FilterType filterType;
+
+	/**
+	 * @param profile The profile to encode with
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 */
+	public PngEncoder(PngProfile profile, int width, int height) {
+		this.profile = profile;
+		this.width = width;
+		this.height = height;
+		this.rowSize = width * BYTES_PER_PIXEL;
+		this.compressionLevel = profile.compressionLevel;
+		this.deflaterStrategy = profile.deflaterStrategy;
+		this.filterType = profile.filterType;
+	}
+
+	/**
+	 * Encodes an image, reading its rows as they are encoded.
+	 * 
+	 * @param rows The pixels of the image, row by row
+	 * @param output The stream to write the PNG image to
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void encode(InputStream rows, OutputStream output) throws IOException {
+		if (profile == PngProfile.ADAPTIVE && (long) rowSize * height >= MIN_SAMPLE_SIZE) {
+			// The sample is spread over the rows read ahead, which are all rows of smaller
+			// images; large images are not held in memory as a whole just to sample them
+			int prefixRows = Math.min(height, Math.max(SAMPLE_BANDS * SAMPLE_BAND_ROWS, MAX_SAMPLE_PREFIX / rowSize));
+			byte[] prefix = new byte[prefixRows * rowSize];
+			IOUtils.readFully(rows, prefix);
+			sample(prefix, prefixRows);
+			rows = new SequenceInputStream(new ByteArrayInputStream(prefix), rows);
+		}
+
+		byte[] scanline = new byte[rowSize];
+		if (ParallelPngWriter.isWorthwhile(width, height)) {
+			// Large images are deflated on several threads
+			int filter = FilterType.isValidStandard(filterType.val) ? filterType.val : PngFilter.ADAPTIVE;
+			ParallelPngWriter writer = new ParallelPngWriter(output, width, height,
+					compressionLevel, deflaterStrategy, filter);
+			for (int y = 0; y < height; ++y) {
+				IOUtils.readFully(rows, scanline);
+				writer.writeRow(scanline);
+			}
+			writer.end();
+		} else {
+			ImageInfo imageInfo = new ImageInfo(width, height, 8, true);
+			PngWriter writer = new PngWriter(output, imageInfo);
+			writer.setCompLevel(compressionLevel);
+			// Set after the filter type, since FILTER_NONE resets the strategy
+			writer.setFilterType(filterType);
+			writer.setDeflaterStrategy(deflaterStrategy);
+			ImageLineByte imageLine = new ImageLineByte(imageInfo, scanline);
+			for (int y = 0; y < height; ++y) {
+				IOUtils.readFully(rows, scanline);
+				writer.writeRow(imageLine);
+			}
+			writer.end();
+		}
+	}
+
+	/**
+	 * Chooses the filter type and deflate strategy that deflate a sample of the
+	 * rows best, and the lowest deflate level that is about as good as higher ones.
+	 * 
+	 * @param pixels The first rows of the image
+	 * @param pixelRows The number of rows
+	 */
+	private void sample(byte[] pixels, int pixelRows) {
+		byte[] sample = new byte[Math.min(SAMPLE_BANDS * SAMPLE_BAND_ROWS, pixelRows) * (rowSize + 1)];
+		PngFilter filter = new PngFilter(rowSize);
+		Deflater deflater = new Deflater();
+		byte[] buffer = new byte[1 << 16];
+		try {
+			int bestFilter = PngFilter.ADAPTIVE;
+			int bestSize = Integer.MAX_VALUE;
+			for (int type : SAMPLE_FILTERS) {
+				filterSample(pixels, pixelRows, filter, type, sample);
+				int size = deflatedSize(deflater, buffer, sample, 6, Deflater.DEFAULT_STRATEGY);
+				if (size < bestSize) {
+					bestSize = size;
+					bestFilter = type;
+				}
+			}
+			filterType = bestFilter == PngFilter.ADAPTIVE ? FilterType.FILTER_VERYAGGRESSIVE
+					: FilterType.getByVal(bestFilter);
+			filterSample(pixels, pixelRows, filter, bestFilter, sample);
+			int defaultSize = bestSize;
+			int filteredSize = deflatedSize(deflater, buffer, sample, 6, Deflater.FILTERED);
+			deflaterStrategy = filteredSize < defaultSize ? Deflater.FILTERED : Deflater.DEFAULT_STRATEGY;
+
+			// The highest level is only tried if the default level improves on the lowest
+			int size = Math.min(defaultSize, filteredSize);
+			if (deflatedSize(deflater, buffer, sample, 1, deflaterStrategy) <= size * LEVEL_TOLERANCE) {
+				compressionLevel = 1;
+			} else if (size <= deflatedSize(deflater, buffer, sample, 9, deflaterStrategy) * LEVEL_TOLERANCE) {
+				compressionLevel = 6;
+			} else {
+				compressionLevel = 9;
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Filters bands of consecutive rows, spread from the first to the last of
+	 * the given rows; if there are few enough, they are filtered as a whole.
+	 */
+	private void filterSample(byte[] pixels, int pixelRows, PngFilter filter, int type, byte[] sample) {
+		int sampleRows = sample.length / (rowSize + 1);
+		byte[] row = new byte[rowSize];
+		byte[] previous = new byte[rowSize];
+		for (int i = 0; i < sampleRows; i++) {
+			int y = i;
+			if (sampleRows < pixelRows) {
+				int band = i / SAMPLE_BAND_ROWS;
+				y = band * (pixelRows - SAMPLE_BAND_ROWS) / (SAMPLE_BANDS - 1) + i % SAMPLE_BAND_ROWS;
+			}
+			System.arraycopy(pixels, y * rowSize, row, 0, rowSize);
+			if (y > 0)
+				System.arraycopy(pixels, (y - 1) * rowSize, previous, 0, rowSize);
+			else
+				Arrays.fill(previous, (byte) 0);
+			System.arraycopy(filter.filter(row, previous, type), 0, sample, i * (rowSize + 1), rowSize + 1);
+		}
+	}
+
+	private static int deflatedSize(Deflater deflater, byte[] buffer, byte[] data, int level, int strategy) {
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setStrategy(strategy);
+		deflater.setInput(data);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished())
+			size += deflater.deflate(buffer);
+		return size;
+	}
+
+	/**
+	 * @return The deflate level used, which the adaptive profile chooses when encoding
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @return The filter type used, which the adaptive profile chooses when encoding
+	 */
+	public FilterType getFilterType() {
+		return filterType;
+	}
+}
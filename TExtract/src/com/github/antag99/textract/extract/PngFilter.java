@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+/**
+ * Applies PNG filters to rows of 8-bit RGBA pixels.
+ */
+class PngFilter {
+	static final int NONE = 0;
+	static final int SUB = 1;
+	static final int UP = 2;
+	static final int AVERAGE = 3;
+	static final int PAETH = 4;
+	/**
+	 * Chooses the filter type of each row, see {@link #filter(byte[], byte[], int)}.
+	 */
+	static final int ADAPTIVE = -1;
+
+	private static final int BYTES_PER_PIXEL = 4;
+
+	private final int rowSize;
+	// The row filtered with each filter type, preceded by the type
+	private final byte[][] candidates = new byte[5][];
+
+	/**
+	 * @param rowSize The size of a row in bytes
+	 */
+	public PngFilter(int rowSize) {
+		this.rowSize = rowSize;
+		for (int i = 0; i < candidates.length; i++)
+			candidates[i] = new byte[rowSize + 1];
+	}
+
+	/**
+	 * Filters a row. The adaptive type uses the filter type that gives the
+	 * smallest sum of absolute differences, as libpng does.
+	 * 
+	 * @param row The row to filter
+	 * @param previous The row above, or zeros for the first row
+	 * @param type The filter type, or {@link #ADAPTIVE}
+	 * @return The filter type followed by the filtered row; overwritten by the next call
+	 */
+	public byte[] filter(byte[] row, byte[] previous, int type) {
+		if (type != ADAPTIVE) {
+			byte[] filtered = candidates[type];
+			filtered[0] = (byte) type;
+			apply(type, row, previous, filtered);
+			return filtered;
+		}
+
+		for (int candidate = 0; candidate < candidates.length; candidate++)
+			apply(candidate, row, previous, candidates[candidate]);
+
+		int best = 0;
+		long bestSum = Long.MAX_VALUE;
+		for (int candidate = 0; candidate < candidates.length; candidate++) {
+			byte[] filtered = candidates[candidate];
+			filtered[0] = (byte) candidate;
+			long sum = 0;
+			for (int i = 1; i <= rowSize; i++)
+				sum += Math.abs(filtered[i]);
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = candidate;
+			}
+		}
+		return candidates[best];
+	}
+
+	private void apply(int type, byte[] row, byte[] previous, byte[] filtered) {
+		int bpp = BYTES_PER_PIXEL;
+		switch (type) {
+		case NONE:
+			System.arraycopy(row, 0, filtered, 1, rowSize);
+			break;
+		case SUB:
+			for (int i = 0; i < bpp; i++)
+				filtered[i + 1] = row[i];
+			for (int i = bpp; i < rowSize; i++)
+				filtered[i + 1] = (byte) (row[i] - row[i - bpp]);
+			break;
+		case UP:
+			for (int i = 0; i < rowSize; i++)
+				filtered[i + 1] = (byte) (row[i] - previous[i]);
+			break;
+		case AVERAGE:
+			for (int i = 0; i < bpp; i++)
+				filtered[i + 1] = (byte) (row[i] - ((previous[i] & 0xff) >> 1));
+			for (int i = bpp; i < rowSize; i++)
+				filtered[i + 1] = (byte) (row[i] - (((row[i - bpp] & 0xff) + (previous[i] & 0xff)) >> 1));
+			break;
+		case PAETH:
+			for (int i = 0; i < bpp; i++)
+				filtered[i + 1] = (byte) (row[i] - previous[i]);
+			for (int i = bpp; i < rowSize; i++)
+				filtered[i + 1] = (byte) (row[i] - paeth(row[i - bpp] & 0xff, previous[i] & 0xff, previous[i - bpp] & 0xff));
+			break;
+		default:
+			throw new IllegalArgumentException("invalid filter type: " + type);
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+}
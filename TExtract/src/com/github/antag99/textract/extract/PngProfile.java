@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.util.zip.Deflater;
+
+import ar.com.hjg.pngj.FilterType;
+
+/**
+ * Trade-offs between the encoding speed and the size of extracted PNG images.
+ */
+public enum PngProfile {
+	/**
+	 * Fastest encoding, but larger files; for output that is thrown away after use, such as diffs.
+	 */
+	FAST(1, Deflater.DEFAULT_STRATEGY, FilterType.FILTER_SUB),
+	/**
+	 * The default; the settings PNG encoders commonly use.
+	 */
+	BALANCED(6, Deflater.FILTERED, FilterType.FILTER_DEFAULT),
+	/**
+	 * Smallest files, at the cost of encoding time; for archiving.
+	 */
+	SMALL(9, Deflater.DEFAULT_STRATEGY, FilterType.FILTER_VERYAGGRESSIVE),
+	/**
+	 * Chooses the filter type and deflate level of each image from a sample
+	 * of its first rows; starts out like {@link #BALANCED}.
+	 */
+	ADAPTIVE(6, Deflater.FILTERED, FilterType.FILTER_DEFAULT);
+
+	final int compressionLevel;
+	final int deflaterStrategy;
+	final FilterType filterType;
+
+	private PngProfile(int compressionLevel, int deflaterStrategy, FilterType filterType) {
+		this.compressionLevel = compressionLevel;
+		this.deflaterStrategy = deflaterStrategy;
+		this.filterType = filterType;
+	}
+
+	/**
+	 * @return The name of this profile, as used on the command line
+	 */
+	public String getName() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @param name The name of a profile, see {@link #getName()}
+	 * @return The profile, or null if there is no profile with the given name
+	 */
+	public static PngProfile forName(String name) {
+		for (PngProfile profile : values()) {
+			if (profile.getName().equals(name))
+				return profile;
+		}
+		return null;
+	}
+}
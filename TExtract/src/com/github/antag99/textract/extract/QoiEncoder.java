@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Encodes 8-bit RGBA images in the Quite OK Image format, see
+ * <a href="https://qoiformat.org/qoi-specification.pdf">the specification</a>.
+ */
+class QoiEncoder {
+	private static final int OP_INDEX = 0x00;
+	private static final int OP_DIFF = 0x40;
+	private static final int OP_LUMA = 0x80;
+	private static final int OP_RUN = 0xc0;
+	private static final int OP_RGB = 0xfe;
+	private static final int OP_RGBA = 0xff;
+	private static final int MAX_RUN = 62;
+	private static final byte[] END_MARKER = { 0, 0, 0, 0, 0, 0, 0, 1 };
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 */
+	public QoiEncoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Encodes an image, reading its rows as they are encoded.
+	 * 
+	 * @param rows The pixels of the image, row by row
+	 * @param output The stream to write the QOI image to
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void encode(InputStream rows, OutputStream output) throws IOException {
+		DataOutputStream header = new DataOutputStream(output);
+		header.writeBytes("qoif");
+		header.writeInt(width);
+		header.writeInt(height);
+		header.writeByte(4); // Channels: RGBA
+		header.writeByte(0); // Colorspace: sRGB with linear alpha
+
+		byte[] row = new byte[width * 4];
+		// Each pixel takes at most five bytes
+		byte[] encoded = new byte[width * 5];
+		// Pixels are packed as RGBA, from the most significant byte
+		int[] index = new int[64];
+		int previous = 0x000000ff;
+		int run = 0;
+
+		for (int y = 0; y < height; ++y) {
+			IOUtils.readFully(rows, row);
+			int length = 0;
+			for (int i = 0; i < row.length; i += 4) {
+				int r = row[i] & 0xff;
+				int g = row[i + 1] & 0xff;
+				int b = row[i + 2] & 0xff;
+				int a = row[i + 3] & 0xff;
+				int pixel = r << 24 | g << 16 | b << 8 | a;
+
+				if (pixel == previous) {
+					if (++run == MAX_RUN) {
+						encoded[length++] = (byte) (OP_RUN | (run - 1));
+						run = 0;
+					}
+					continue;
+				}
+
+				if (run > 0) {
+					encoded[length++] = (byte) (OP_RUN | (run - 1));
+					run = 0;
+				}
+
+				int hash = (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+				if (index[hash] == pixel) {
+					encoded[length++] = (byte) (OP_INDEX | hash);
+				} else {
+					index[hash] = pixel;
+					if (a == (previous & 0xff)) {
+						// Differences wrap around, like the channels themselves
+						int dr = (byte) (r - (previous >>> 24));
+						int dg = (byte) (g - (previous >>> 16 & 0xff));
+						int db = (byte) (b - (previous >>> 8 & 0xff));
+						int drdg = (byte) (dr - dg);
+						int dbdg = (byte) (db - dg);
+						if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+							encoded[length++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+						} else if (dg >= -32 && dg <= 31 && drdg >= -8 && drdg <= 7 && dbdg >= -8 && dbdg <= 7) {
+							encoded[length++] = (byte) (OP_LUMA | (dg + 32));
+							encoded[length++] = (byte) ((drdg + 8) << 4 | (dbdg + 8));
+						} else {
+							encoded[length++] = (byte) OP_RGB;
+							encoded[length++] = (byte) r;
+							encoded[length++] = (byte) g;
+							encoded[length++] = (byte) b;
+						}
+					} else {
+						encoded[length++] = (byte) OP_RGBA;
+						encoded[length++] = (byte) r;
+						encoded[length++] = (byte) g;
+						encoded[length++] = (byte) b;
+						encoded[length++] = (byte) a;
+					}
+				}
+				previous = pixel;
+			}
+			output.write(encoded, 0, length);
+		}
+
+		if (run > 0)
+			output.write(OP_RUN | (run - 1));
+		output.write(END_MARKER);
+	}
+}
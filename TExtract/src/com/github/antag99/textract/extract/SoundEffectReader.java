@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Reads PCM sound effects, and writes them as WAV files.
+ */
+class SoundEffectReader extends AssetReader {
+	private static final byte[] RIFF = "RIFF".getBytes(Charset.forName("UTF-8"));
+	private static final byte[] WAVE = "WAVE".getBytes(Charset.forName("UTF-8"));
+	// Note the space after fmt.
+	private static final byte[] fmt = "fmt ".getBytes(Charset.forName("UTF-8"));
+	private static final byte[] data = "data".getBytes(Charset.forName("UTF-8"));
+	private static final int wavHeaderSize = RIFF.length + 4 + WAVE.length + fmt.length + 4 + 2 + 2 + 4 + 4 + 2 + 2 + data.length + 4;
+
+	@Override
+	public String getOutputFormat(XnbExtractor extractor) {
+		return "wav";
+	}
+
+	@Override
+	public long getCost(XnbInfo info) {
+		// The samples are copied as they are
+		return info.getDecompressedSize();
+	}
+
+	@Override
+	protected void probe(ByteBuffer buffer, XnbInfo info) {
+		buffer.getInt(); // Format size
+		buffer.getShort(); // Codec
+		info.channels = buffer.getShort() & 0xffff;
+		info.samplesPerSecond = buffer.getInt();
+		buffer.getInt(); // Average bytes per second
+		buffer.getShort(); // Block align
+		info.bitsPerSample = buffer.getShort() & 0xffff;
+		buffer.getShort(); // Unknown
+		info.dataSize = buffer.getInt();
+	}
+
+	@Override
+	public void read(AssetInput input) throws XnbException, IOException {
+		ByteBuffer buffer = input.getBuffer();
+		if (buffer.remaining() < 26) {
+			throw new XnbException("unexpected end of asset data");
+		}
+		int audioFormat = buffer.getInt();
+		if (audioFormat != 18) {
+			throw new XnbException("unimplemented audio format: " + audioFormat);
+		}
+
+		int wavCodec = buffer.getShort();
+		if (wavCodec != 1) {
+			throw new XnbException("unimplemented wav codec: " + wavCodec);
+		}
+
+		int channels = buffer.getShort() & 0xffff;
+		int samplesPerSecond = buffer.getInt();
+		int averageBytesPerSecond = buffer.getInt();
+		int blockAlign = buffer.getShort() & 0xffff;
+		int bitsPerSample = buffer.getShort() & 0xffff;
+		buffer.getShort(); // Unknown
+		int dataChunkSize = buffer.getInt();
+
+		// Create format header
+		ByteBuffer writeBuffer = ByteBuffer.allocate(wavHeaderSize);
+		writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		writeBuffer.put(RIFF);
+		writeBuffer.putInt(dataChunkSize + 36);
+		writeBuffer.put(WAVE);
+		writeBuffer.put(fmt);
+		writeBuffer.putInt(16);
+		writeBuffer.putShort((short) 1);
+		writeBuffer.putShort((short) channels);
+		writeBuffer.putInt(samplesPerSecond);
+		writeBuffer.putInt(averageBytesPerSecond);
+		writeBuffer.putShort((short) blockAlign);
+		writeBuffer.putShort((short) bitsPerSample);
+		writeBuffer.put(data);
+		writeBuffer.putInt(dataChunkSize);
+
+		writeBuffer.flip();
+
+		File outputFile = input.getOutputFile("wav");
+		if (input.isTransferable()) {
+			// The samples are transferred from the input file as the output is written,
+			// without being copied through user space
+			long samplesPosition = input.skip(dataChunkSize);
+			input.output(new OutputFile(outputFile, new ByteBuffer[] { writeBuffer }, input.getInputFile(),
+					samplesPosition, dataChunkSize));
+		} else {
+			input.output(new OutputFile(outputFile, writeBuffer, input.read(dataChunkSize)));
+		}
+	}
+}
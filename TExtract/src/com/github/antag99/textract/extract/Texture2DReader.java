@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads 32-bit color textures without mipmaps, and encodes them in the
+ * {@link XnbExtractor#getTextureFormat() texture format} of the extractor.
+ */
+class Texture2DReader extends AssetReader {
+	private static final int SURFACEFORMAT_COLOR = 0;
+	// Encoding a pixel byte is several times as expensive as copying it
+	private static final int ENCODING_COST = 8;
+	// The size the output of compressed formats starts at, one frame of decompressed data
+	private static final int INITIAL_OUTPUT_SIZE = 0x8000;
+
+	@Override
+	public String getOutputFormat(XnbExtractor extractor) {
+		return extractor.getTextureFormat().getExtension();
+	}
+
+	@Override
+	public long getCost(XnbInfo info) {
+		return (long) info.getDecompressedSize() * ENCODING_COST;
+	}
+
+	@Override
+	protected void probe(ByteBuffer buffer, XnbInfo info) {
+		info.surfaceFormat = buffer.getInt();
+		info.width = buffer.getInt();
+		info.height = buffer.getInt();
+		info.mipCount = buffer.getInt();
+	}
+
+	@Override
+	public void read(AssetInput input) throws XnbException, IOException {
+		ByteBuffer buffer = input.getBuffer();
+		if (buffer.remaining() < 20) {
+			throw new XnbException("unexpected end of asset data");
+		}
+		int surfaceFormat = buffer.getInt();
+
+		final int width = buffer.getInt();
+		final int height = buffer.getInt();
+
+		// Mip count
+		int mipCount = buffer.getInt();
+		// Size
+		int size = buffer.getInt();
+
+		if (mipCount != 1) {
+			throw new XnbException("unexpected mipCount: " + mipCount);
+		}
+
+		if (size != width * height * 4) {
+			throw new XnbException("unexpected size: " + size);
+		}
+
+		if (surfaceFormat != SURFACEFORMAT_COLOR) {
+			throw new XnbException("unexpected surface format: " + surfaceFormat);
+		}
+
+		TextureFormat textureFormat = input.getExtractor().getTextureFormat();
+		if (textureFormat == TextureFormat.RGBA) {
+			ByteBuffer pixels = input.read(size);
+			input.encoded(size, size);
+
+			String sizeInformation = "{\"width\": " + width + ", \"height\": " + height + ", \"format\": \"rgba8\"}\n";
+			input.output(new OutputFile(input.getOutputFile(textureFormat.getExtension()), pixels));
+			input.output(new OutputFile(input.getOutputFile("json"),
+					ByteBuffer.wrap(sizeInformation.getBytes(Charset.forName("UTF-8")))));
+			return;
+		}
+
+		// Rows are encoded as soon as they are decompressed, after the first rows if the profile samples them
+		InputStream rows = input.getStream();
+		// Encode in memory, such that the disk write can happen elsewhere; the size of
+		// compressed output isn't known up front, so it grows as rows are encoded
+		OutputBuffer output = new OutputBuffer(textureFormat == TextureFormat.TGA ? size + TgaEncoder.HEADER_SIZE
+				: Math.min(size, INITIAL_OUTPUT_SIZE));
+		switch (textureFormat) {
+		case QOI:
+			new QoiEncoder(width, height).encode(rows, output);
+			break;
+		case TGA:
+			new TgaEncoder(width, height).encode(rows, output);
+			break;
+		default:
+			new PngEncoder(input.getExtractor().getPngProfile(), width, height).encode(rows, output);
+			break;
+		}
+		input.encoded(size, output.size());
+
+		input.output(new OutputFile(input.getOutputFile(textureFormat.getExtension()), output.toByteBuffer()));
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+/**
+ * Formats textures can be extracted to. Formats other than PNG are larger,
+ * but written with little or no processing of the pixels.
+ */
+public enum TextureFormat {
+	/**
+	 * Compressed PNG images, see {@link PngProfile}.
+	 */
+	PNG("png"),
+	/**
+	 * Headerless 8-bit RGBA pixels, row by row from the top; the size of the
+	 * image is written to a JSON file next to it.
+	 */
+	RGBA("rgba"),
+	/**
+	 * Images in the Quite OK Image format, which is lossless and fast to encode.
+	 */
+	QOI("qoi"),
+	/**
+	 * Uncompressed 32-bit Truevision TGA images.
+	 */
+	TGA("tga");
+
+	private final String extension;
+
+	private TextureFormat(String extension) {
+		this.extension = extension;
+	}
+
+	/**
+	 * @return The extension of files in this format, without the dot
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * @return The name of this format, as used on the command line
+	 */
+	public String getName() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @param name The name of a format, see {@link #getName()}
+	 * @return The format, or null if there is no format with the given name
+	 */
+	public static TextureFormat forName(String name) {
+		for (TextureFormat format : values()) {
+			if (format.getName().equals(name))
+				return format;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Encodes 8-bit RGBA images as uncompressed 32-bit TGA images.
+ */
+class TgaEncoder {
+	static final int HEADER_SIZE = 18;
+	private static final int MAX_SIZE = 0xffff;
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @throws XnbException If the image is too large for TGA
+	 */
+	public TgaEncoder(int width, int height) throws XnbException {
+		if (width > MAX_SIZE || height > MAX_SIZE) {
+			throw new XnbException("texture too large for TGA: " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Encodes an image, reading its rows as they are encoded.
+	 * 
+	 * @param rows The pixels of the image, row by row
+	 * @param output The stream to write the TGA image to
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void encode(InputStream rows, OutputStream output) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 0); // ID length
+		header.put((byte) 0); // No color map
+		header.put((byte) 2); // Uncompressed true-color
+		header.put(new byte[5]); // Color map specification
+		header.putShort((short) 0); // X origin
+		header.putShort((short) 0); // Y origin
+		header.putShort((short) width);
+		header.putShort((short) height);
+		header.put((byte) 32); // Bits per pixel
+		header.put((byte) 0x28); // Top-left origin, 8 alpha bits
+		output.write(header.array());
+
+		// Pixels are stored as BGRA
+		byte[] row = new byte[width * 4];
+		for (int y = 0; y < height; ++y) {
+			IOUtils.readFully(rows, row);
+			for (int i = 0; i < row.length; i += 4) {
+				byte r = row[i];
+				row[i] = row[i + 2];
+				row[i + 2] = r;
+			}
+			output.write(row);
+		}
+	}
+}
@@ -54,12 +54,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.concurrent.CancellationException;
 
 import org.apache.commons.io.FileUtils;
 
 /**
  * Extracts music files. </p> Can be extended to provide logging support by
- * overriding the {@link #percentage(float)} and {@link #status(String)} methods.
+ * overriding the {@link #percentage(float)} and {@link #status(String)} methods,
+ * to write or convert the tracks on other threads by overriding the
+ * {@link #output(OutputFile)} and {@link #convert(File, File)} methods,
+ * and to skip tracks by overriding {@link #isExtracted(File)}.
  */
 public class XactExtractor {
 	// XWB parsing was adapted from MonoGame
@@ -181,6 +185,58 @@ public class XactExtractor {
 	protected void percentage(float percentage) {
 	}
 
+	/**
+	 * Called with the contents of the input file once they have been read,
+	 * before anything is extracted from them.
+	 * 
+	 * @param contents The contents of the input file; a buffer of its own, which may be consumed
+	 */
+	protected void input(ByteBuffer contents) {
+	}
+
+	/**
+	 * Called when a track has been decoded to WAVE; writes it by default.
+	 * 
+	 * @param output The file to write
+	 * @throws IOException If an I/O error occurs
+	 */
+	protected void output(OutputFile output) throws IOException {
+		output.write();
+	}
+
+	/**
+	 * Called when an xWMA track has been written; converts it to WAVE using
+	 * ffmpeg and deletes the xWMA file by default. The WAVE file is only
+	 * created once the conversion has finished.
+	 * 
+	 * @param xWmaFile The xWMA file to convert
+	 * @param outputFile The WAVE file to write
+	 * @throws IOException If an I/O error occurs
+	 */
+	protected void convert(File xWmaFile, File outputFile) throws IOException {
+		File temporaryFile = OutputFile.temporaryFile(outputFile);
+		// Left behind if a previous run was interrupted
+		temporaryFile.delete();
+
+		Ffmpeg.convert(xWmaFile, temporaryFile);
+
+		xWmaFile.delete();
+		if (temporaryFile.exists()) {
+			OutputFile.replace(temporaryFile, outputFile);
+		}
+	}
+
+	/**
+	 * Called before a track is decoded; returning true skips the track.
+	 * Never skips tracks by default.
+	 * 
+	 * @param outputFile The WAVE file of the track
+	 * @return Whether the track has already been extracted
+	 */
+	protected boolean isExtracted(File outputFile) {
+		return false;
+	}
+
 	/**
 	 * @param inputFile The XWB file to extract
 	 * @param outputDirectory The directory to put the extracted files inside
@@ -188,13 +244,15 @@ public class XactExtractor {
 	 * 
 	 * @throws XnbException If the XWB file was malformed
 	 * @throws IOException If an I/O error occurs
+	 * @throws CancellationException If the thread was interrupted
 	 */
 	public void extract(File inputFile, File outputDirectory) throws XnbException, IOException {
 		status("Parsing XWB file header");
 		percentage(0f);
 
-		ByteBuffer buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(inputFile));
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		// Large wave banks are mapped; tracks are sliced from the mapping rather than copied
+		ByteBuffer buffer = InputFile.read(inputFile);
+		input(buffer.duplicate());
 
 		int Format = 0;
 		int PlayRegionLength = 0;
@@ -243,6 +301,11 @@ public class XactExtractor {
 
 		int playregion_offset = segmentOffsets[4];
 		for (int current_entry = 0; current_entry < EntryCount; current_entry++) {
+			// Allow the extraction to be cancelled between tracks
+			if (Thread.currentThread().isInterrupted()) {
+				throw new CancellationException("extraction interrupted");
+			}
+
 			String track = current_entry < trackNames.length ? trackNames[current_entry] : (current_entry + 1) + "_Unknown";
 
 			status("Extracting " + track);
@@ -265,14 +328,19 @@ public class XactExtractor {
 			wavebank_offset += EntryMetaDataElementSize;
 			PlayRegionOffset += playregion_offset;
 
+			if (isExtracted(new File(outputDirectory, track + ".wav"))) {
+				status("Skipping " + track);
+				continue;
+			}
+
 			int codec = (Format) & ((1 << 2) - 1);
 			int chans = (Format >> (2)) & ((1 << 3) - 1);
 			int rate = (Format >> (2 + 3)) & ((1 << 18) - 1);
 			int align = (Format >> (2 + 3 + 18)) & ((1 << 8) - 1);
 
 			buffer.position(PlayRegionOffset);
-			byte[] audiodata = new byte[PlayRegionLength];
-			buffer.get(audiodata);
+			ByteBuffer audiodata = buffer.slice();
+			audiodata.limit(PlayRegionLength);
 
 			// The codecs used by Terraria are currently xWMA and ADPCM.
 			// The xWMA format is not supported by FNA, so it's only used
@@ -283,7 +351,7 @@ public class XactExtractor {
 				ByteBuffer writeBuffer = ByteBuffer.allocate(wavHeaderSize);
 				writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
 				writeBuffer.put(RIFF); // chunk id
-				writeBuffer.putInt(audiodata.length + 36); // chunk size
+				writeBuffer.putInt(audiodata.remaining() + 36); // chunk size
 				writeBuffer.put(WAVE); // RIFF type
 				writeBuffer.put(fmt); // chunk id
 				writeBuffer.putInt(16); // format header size
@@ -296,12 +364,10 @@ public class XactExtractor {
 				writeBuffer.putShort((short) blockAlign);
 				writeBuffer.putShort((short) bitsPerSample);
 				writeBuffer.put(data); // chunk id
-				writeBuffer.putInt(audiodata.length); // data size
+				writeBuffer.putInt(audiodata.remaining()); // data size
+				writeBuffer.flip();
 
-				FileOutputStream output = new FileOutputStream(new File(outputDirectory, track + ".wav"));
-				output.write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
-				output.write(audiodata);
-				output.close();
+				output(new OutputFile(new File(outputDirectory, track + ".wav"), writeBuffer, audiodata));
 			} else if (codec == MiniFormatTag_WMA) {
 				// Note that it could still be another codec than xWma,
 				// but that scenario isn't handled here.
@@ -344,7 +410,7 @@ public class XactExtractor {
 				output.writeShort((short) 0);
 				output.writeBytes("dpds".getBytes(Charset.forName("UTF-8")));
 				int packetLength = blockAlign;
-				int packetNum = audiodata.length / packetLength;
+				int packetNum = audiodata.remaining() / packetLength;
 				output.writeInt(packetNum * 4);
 
 				int fullSize = (PlayRegionLength * averageBytesPerSec % 4096 != 0) ? (1 + (int) (PlayRegionLength
@@ -375,20 +441,17 @@ public class XactExtractor {
 				// output.position(pos);
 				output.close();
 
-				File outputFile = new File(outputDirectory, track + ".wav");
-				Ffmpeg.convert(xWmaFile, outputFile);
-
-				xWmaFile.delete();
+				convert(xWmaFile, new File(outputDirectory, track + ".wav"));
 			} else if (codec == MiniFormatTag_ADPCM) {
 				// Convert ADPCM data to PCM
-				audiodata = new ADPCMConverter().convertToPCM(
-						ByteBuffer.wrap(audiodata), (short) chans, (short) align);
+				byte[] pcmdata = new ADPCMConverter().convertToPCM(
+						audiodata, (short) chans, (short) align);
 				// Encode PCM as a WAVE file; note that most magic values used
 				// here were obtained via trial and error, so it might break...
 				ByteBuffer writeBuffer = ByteBuffer.allocate(wavHeaderSize);
 				writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
 				writeBuffer.put(RIFF);
-				writeBuffer.putInt(audiodata.length + 36);
+				writeBuffer.putInt(pcmdata.length + 36);
 				writeBuffer.put(WAVE);
 				writeBuffer.put(fmt);
 				writeBuffer.putInt(16);
@@ -399,11 +462,10 @@ public class XactExtractor {
 				writeBuffer.putShort((short) 4); // data block alignment
 				writeBuffer.putShort((short) 16); // bits per sample
 				writeBuffer.put(data);
-				writeBuffer.putInt(audiodata.length); // dataChunkSize
-				FileOutputStream output = new FileOutputStream(new File(outputDirectory, track + ".wav"));
-				output.write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
-				output.write(audiodata);
-				output.close();
+				writeBuffer.putInt(pcmdata.length); // dataChunkSize
+				writeBuffer.flip();
+
+				output(new OutputFile(new File(outputDirectory, track + ".wav"), writeBuffer, ByteBuffer.wrap(pcmdata)));
 			} else {
 				throw new XnbException("unimplemented codec " + codec);
 			}
@@ -22,6 +22,7 @@
  ******************************************************************************/
 package com.github.antag99.textract.extract;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
@@ -53,6 +54,9 @@ public final class Xnb {
 
 	public static String getCSharpString(ByteBuffer buffer) {
 		int len = get7BitEncodedInt(buffer);
+		// Checked before allocating, as the length of malformed data can be anything
+		if (len < 0 || len > buffer.remaining())
+			throw new BufferUnderflowException();
 		byte[] buf = new byte[len];
 		buffer.get(buf);
 
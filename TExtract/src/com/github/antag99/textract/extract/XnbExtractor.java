@@ -23,208 +23,386 @@
 package com.github.antag99.textract.extract;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CancellationException;
 
-import org.apache.commons.io.FileUtils;
-
-import ar.com.hjg.pngj.ImageInfo;
-import ar.com.hjg.pngj.ImageLineByte;
-import ar.com.hjg.pngj.PngWriter;
+import org.apache.commons.io.IOUtils;
 
 /**
  * Extracts XNB files to a modifiable format. Currently,
  * only certain textures and sound effects are supported,
  * font and shader effects are simply ignored. Other types
- * raise an error.
+ * raise an error. Assets are read by the {@link AssetReader}
+ * registered for their type reader, see {@link #setReaders(AssetReaderRegistry)}.
+ * </p> Can be extended to write the output
+ * on another thread by overriding {@link #output(OutputFile)}.
  */
 public class XnbExtractor {
-	private static final int SURFACEFORMAT_COLOR = 0;
 	private static final int HEADER_SIZE = 14;
+	// Enough for the name of the first type reader, including assembly information
+	private static final int TYPE_READER_SIZE = 256;
+	// Frames are at most 64 KB
+	private static final int FRAME_BUFFER_SIZE = 0x10000;
 
-	// WAV Encoding
-	private static final byte[] RIFF = "RIFF".getBytes(Charset.forName("UTF-8"));
-	private static final byte[] WAVE = "WAVE".getBytes(Charset.forName("UTF-8"));
-	// Note the space after fmt.
-	private static final byte[] fmt = "fmt ".getBytes(Charset.forName("UTF-8"));
-	private static final byte[] data = "data".getBytes(Charset.forName("UTF-8"));
-	private static final int wavHeaderSize = RIFF.length + 4 + WAVE.length + fmt.length + 4 + 2 + 2 + 4 + 4 + 2 + 2 + data.length + 4;
 
-	private LzxDecoder lzxDecoder;
+	private TextureFormat textureFormat = TextureFormat.PNG;
+	private PngProfile pngProfile = PngProfile.BALANCED;
+	private boolean deduplicated;
+	private AssetReaderRegistry readers = AssetReaderRegistry.getDefault();
 
 	public XnbExtractor() {
-		lzxDecoder = new LzxDecoder();
 	}
 
 	/**
-	 * @param inputFile The XNB file to extract
-	 * @param outputDirectory The output directory to put the extracted file(s) into
-	 * @throws XnbException If the input file was malformed or used unsupported features.
+	 * Called when an output file has been decoded; writes it by default.
+	 * 
+	 * @param output The file to write
 	 * @throws IOException If an I/O error occurs
 	 */
-	public void extract(File inputFile, File outputDirectory) throws XnbException, IOException {
-		ByteBuffer buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(inputFile));
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	protected void output(OutputFile output) throws IOException {
+		output.write();
+	}
 
-		// Check that this file is really an xnb file
-		if (buffer.get() != 'X' || buffer.get() != 'N' || buffer.get() != 'B') {
-			throw new XnbException("not an XNB file: " + inputFile.getName());
-		}
+	/**
+	 * Called with the contents of the input file once they have been read,
+	 * before anything is extracted from them.
+	 * 
+	 * @param contents The contents of the input file; a buffer of its own, which may be consumed
+	 */
+	protected void input(ByteBuffer contents) {
+	}
 
-		// Ignore target platform, it shouldn't matter
-		@SuppressWarnings("unused")
-		int targetPlatform = buffer.get();
+	/**
+	 * Called when a texture has been encoded.
+	 * 
+	 * @param pixelBytes The size of the pixel data
+	 * @param encodedBytes The size of the encoded image
+	 * @param nanos The time spent decompressing and encoding the texture
+	 */
+	protected void encoded(long pixelBytes, long encodedBytes, long nanos) {
+	}
 
-		int version = buffer.get();
-		if (version != 5) {
-			throw new XnbException("unsupported XNB version: " + version);
-		}
+	/**
+	 * Called before anything is encoded if {@link #setDeduplicated(boolean)
+	 * deduplication} is enabled.
+	 * 
+	 * @param hash The SHA-1 hash of the decompressed data of the file, in hexadecimal
+	 * @return Whether the file is a duplicate that is handled elsewhere, in which case it is not extracted
+	 * @throws IOException If an I/O error occurs
+	 */
+	protected boolean duplicate(String hash) throws IOException {
+		return false;
+	}
+
+	public boolean isDeduplicated() {
+		return deduplicated;
+	}
 
-		boolean compressed = (buffer.get() & 0x80) != 0;
+	/**
+	 * @param deduplicated Whether to hash the decompressed data of files, see
+	 *            {@link #duplicate(String)}; the data is then decompressed as a
+	 *            whole rather than as it is encoded
+	 */
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
 
-		int compressedSize = buffer.getInt();
-		int decompressedSize = compressed ? buffer.getInt() : compressedSize;
+	public AssetReaderRegistry getReaders() {
+		return readers;
+	}
 
-		if (compressed) {
-			ByteBuffer decompressedBuffer = ByteBuffer.allocate(decompressedSize);
-			decompressedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * @param readers The readers of the asset types to extract
+	 */
+	public void setReaders(AssetReaderRegistry readers) {
+		if (readers == null)
+			throw new IllegalArgumentException("readers cannot be null");
+		this.readers = readers;
+	}
 
-			lzxDecoder.decompress(buffer, compressedSize - HEADER_SIZE, decompressedBuffer, decompressedSize);
+	public TextureFormat getTextureFormat() {
+		return textureFormat;
+	}
 
-			decompressedBuffer.position(0);
+	/**
+	 * @param textureFormat The format to extract textures to
+	 */
+	public void setTextureFormat(TextureFormat textureFormat) {
+		if (textureFormat == null)
+			throw new IllegalArgumentException("textureFormat cannot be null");
+		this.textureFormat = textureFormat;
+	}
 
-			buffer = decompressedBuffer;
+	public PngProfile getPngProfile() {
+		return pngProfile;
+	}
+
+	/**
+	 * @param pngProfile The trade-off between speed and size when encoding textures
+	 */
+	public void setPngProfile(PngProfile pngProfile) {
+		if (pngProfile == null)
+			throw new IllegalArgumentException("pngProfile cannot be null");
+		this.pngProfile = pngProfile;
+	}
+
+	/**
+	 * Reads the header of an XNB file, without reading the rest of the file.
+	 * Only the sizes of the returned info are known, along with the type if
+	 * the file is not compressed; see {@link #probe(File)} for the type and
+	 * properties of the asset.
+	 * 
+	 * @param inputFile The XNB file to read the header of
+	 * @return The compression and sizes of the asset data
+	 * @throws XnbException If the input file was not an XNB file
+	 * @throws IOException If an I/O error occurs
+	 */
+	public static XnbInfo readHeader(File inputFile) throws XnbException, IOException {
+		long length = Math.min(inputFile.length(), HEADER_SIZE + TYPE_READER_SIZE);
+		byte[] header = new byte[(int) Math.max(HEADER_SIZE, length)];
+		FileInputStream input = new FileInputStream(inputFile);
+		try {
+			IOUtils.readFully(input, header);
+		} finally {
+			input.close();
 		}
 
-		int typeReaderCount = Xnb.get7BitEncodedInt(buffer);
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		XnbInfo info = new XnbInfo();
+		readHeader(buffer, inputFile, info);
+
+		if (!info.compressed) {
+			// The type readers follow the header, unless they are compressed along with the asset
+			try {
+				Xnb.get7BitEncodedInt(buffer);
+				info.typeReaderName = AssetReaderRegistry.stripAssemblyInformation(Xnb.getCSharpString(buffer));
+			} catch (BufferUnderflowException ex) {
+				// The name is unusually long; the type remains unknown
+			}
+		}
+		return info;
+	}
 
-		// The first type reader is used for reading the primary asset
-		String typeReaderName = Xnb.getCSharpString(buffer);
-		// The type reader version - Dosen't matter
-		buffer.getInt();
+	/**
+	 * @param inputFile The XNB file to extract
+	 * @param outputDirectory The output directory to put the extracted file(s) into
+	 * @throws XnbException If the input file was malformed or used unsupported features.
+	 * @throws IOException If an I/O error occurs
+	 * @throws CancellationException If the thread was interrupted
+	 */
+	public void extract(File inputFile, File outputDirectory) throws XnbException, IOException {
+		ByteBuffer buffer = InputFile.read(inputFile);
+		input(buffer.duplicate());
+		XnbInfo info = new XnbInfo();
+		readHeader(buffer, inputFile, info);
+
+		if (deduplicated) {
+			if (!info.compressed) {
+				if (!duplicate(hash(buffer)))
+					extractAsset(buffer, null, true, inputFile, outputDirectory);
+				return;
+			}
 
-		// Type reader names MIGHT contain assembly information
-		int assemblyInformationIndex = typeReaderName.indexOf(',');
-		if (assemblyInformationIndex != -1)
-			typeReaderName = typeReaderName.substring(0, assemblyInformationIndex);
+			// Decompressed as a whole, such that it can be hashed before anything is encoded;
+			// the buffer is reused by the next file once the asset has been read
+			DecoderCache cache = DecoderCache.get();
+			ByteBuffer decompressed = cache.buffer(info.decompressedSize);
+			try {
+				cache.decoder().decompress(buffer, info.compressedSize - HEADER_SIZE,
+						decompressed, info.decompressedSize);
+				decompressed.flip();
+				if (!duplicate(hash(decompressed)))
+					extractAsset(decompressed, null, false, inputFile, outputDirectory);
+			} finally {
+				cache.release(decompressed);
+			}
+			return;
+		}
 
-		// Skip the remaining type readers, as all types are known
-		for (int k = 1; k < typeReaderCount; k++) {
-			Xnb.getCSharpString(buffer);
-			buffer.getInt();
+		if (!info.compressed) {
+			extractAsset(buffer, null, true, inputFile, outputDirectory);
+			return;
 		}
 
-		// Shared resources are unused by Terraria assets
-		if (Xnb.get7BitEncodedInt(buffer) != 0) {
-			throw new XnbException("shared resources are not supported");
+		// Compressed data is decompressed one frame at a time as it is read, rather than
+		// as a whole up front; the decoder and frame buffer are reused by the next file
+		DecoderCache cache = DecoderCache.get();
+		ByteBuffer frameBuffer = cache.buffer(FRAME_BUFFER_SIZE);
+		try {
+			LzxDecoder decoder = cache.decoder();
+			decoder.start(buffer, info.compressedSize - HEADER_SIZE);
+			decoder.decompressFrame(frameBuffer);
+			frameBuffer.flip();
+
+			extractAsset(frameBuffer, decoder, false, inputFile, outputDirectory);
+		} finally {
+			cache.release(frameBuffer);
 		}
+	}
 
-		if (Xnb.get7BitEncodedInt(buffer) != 1) {
-			throw new XnbException("primary asset is null; this shouldn't happen");
+	/**
+	 * Describes the asset in an XNB file. Only the header and the first
+	 * LZX frame of the file are read, which is enough to reach the header
+	 * of the asset. Its properties are read by the reader of its type, as
+	 * registered with this extractor. Used to schedule compressed files by
+	 * the type of their asset, which {@link #readHeader(File)} can't tell.
+	 * 
+	 * @param inputFile The XNB file to probe
+	 * @return The type and properties of the asset
+	 * @throws XnbException If the input file was malformed
+	 * @throws IOException If an I/O error occurs
+	 */
+	public XnbInfo probe(File inputFile) throws XnbException, IOException {
+		// The header, and the first frame: its header, data and the two bytes the decoder reads ahead
+		byte[] head = new byte[(int) Math.min(inputFile.length(), HEADER_SIZE + 5 + 0xFFFF + 2)];
+		FileInputStream input = new FileInputStream(inputFile);
+		try {
+			IOUtils.readFully(input, head);
+		} finally {
+			input.close();
 		}
 
-		String xnbFileName = inputFile.getName();
-		String baseFileName = xnbFileName.substring(0, xnbFileName.lastIndexOf('.'));
+		ByteBuffer buffer = ByteBuffer.wrap(head);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		XnbInfo info = new XnbInfo();
+		readHeader(buffer, inputFile, info);
+
+		if (info.compressed) {
+			DecoderCache cache = DecoderCache.get();
+			ByteBuffer frameBuffer = cache.buffer(FRAME_BUFFER_SIZE);
+			try {
+				LzxDecoder decoder = cache.decoder();
+				decoder.start(buffer, Math.min(info.compressedSize, head.length) - HEADER_SIZE);
+				decoder.decompressFrame(frameBuffer);
+				frameBuffer.flip();
+				probeAsset(frameBuffer, info);
+			} finally {
+				cache.release(frameBuffer);
+			}
+		} else {
+			probeAsset(buffer, info);
+		}
+		return info;
+	}
 
-		// Switch on the type reader name, excluding assembly information
-		switch (typeReaderName) {
-		case "Microsoft.Xna.Framework.Content.Texture2DReader": {
-			int surfaceFormat = buffer.getInt();
+	/**
+	 * @return The SHA-1 hash of the remaining data of the buffer, in hexadecimal
+	 */
+	private static String hash(ByteBuffer buffer) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+		digest.update(buffer.duplicate());
 
-			final int width = buffer.getInt();
-			final int height = buffer.getInt();
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+			result.append(String.format("%02x", b & 0xff));
+		return result.toString();
+	}
 
-			// Mip count
-			int mipCount = buffer.getInt();
-			// Size
-			int size = buffer.getInt();
+	private static void readHeader(ByteBuffer buffer, File inputFile, XnbInfo info) throws XnbException {
+		// Check that this file is really an xnb file
+		if (buffer.get() != 'X' || buffer.get() != 'N' || buffer.get() != 'B') {
+			throw new XnbException("not an XNB file: " + inputFile.getName());
+		}
 
-			if (mipCount != 1) {
-				throw new XnbException("unexpected mipCount: " + mipCount);
-			}
+		// Ignore target platform, it shouldn't matter
+		@SuppressWarnings("unused")
+		int targetPlatform = buffer.get();
 
-			if (size != width * height * 4) {
-				throw new XnbException("unexpected size: " + size);
-			}
+		int version = buffer.get();
+		if (version != 5) {
+			throw new XnbException("unsupported XNB version: " + version);
+		}
 
-			if (surfaceFormat != SURFACEFORMAT_COLOR) {
-				throw new XnbException("unexpected surface format: " + surfaceFormat);
-			}
+		info.compressed = (buffer.get() & 0x80) != 0;
 
-			FileOutputStream output = FileUtils.openOutputStream(new File(outputDirectory, baseFileName + ".png"));
+		info.compressedSize = buffer.getInt();
+		info.decompressedSize = info.compressed ? buffer.getInt() : info.compressedSize;
+	}
 
-			ImageInfo imageInfo = new ImageInfo(width, height, 8, true);
-			PngWriter writer = new PngWriter(output, imageInfo);
+	/**
+	 * Reads the type reader list at the start of the asset data, and the
+	 * header of the primary asset that follows it.
+	 * 
+	 * @param endMessage The message of the exception thrown if the data ends before that
+	 * @return The name of the type reader of the primary asset, excluding assembly information
+	 */
+	private static String readAssetHeader(ByteBuffer buffer, String endMessage) throws XnbException {
+		String typeReaderName;
+		try {
+			int typeReaderCount = Xnb.get7BitEncodedInt(buffer);
+
+			// The first type reader is used for reading the primary asset
+			typeReaderName = Xnb.getCSharpString(buffer);
+			// The type reader version - Dosen't matter
+			buffer.getInt();
 
-			byte[] scanline = new byte[width * 4];
-			ImageLineByte imageLine = new ImageLineByte(imageInfo, scanline);
+			// Type reader names MIGHT contain assembly information
+			typeReaderName = AssetReaderRegistry.stripAssemblyInformation(typeReaderName);
 
-			for (int y = 0; y < height; ++y) {
-				buffer.get(scanline);
-				writer.writeRow(imageLine);
+			// Skip the remaining type readers, as all types are known
+			for (int k = 1; k < typeReaderCount; k++) {
+				Xnb.getCSharpString(buffer);
+				buffer.getInt();
 			}
 
-			writer.end();
-			break;
-		}
-		case "Microsoft.Xna.Framework.Content.SoundEffectReader": {
-			int audioFormat = buffer.getInt();
-			if (audioFormat != 18) {
-				throw new XnbException("unimplemented audio format: " + audioFormat);
+			// Shared resources are unused by Terraria assets
+			if (Xnb.get7BitEncodedInt(buffer) != 0) {
+				throw new XnbException("shared resources are not supported");
 			}
 
-			int wavCodec = buffer.getShort();
-			if (wavCodec != 1) {
-				throw new XnbException("unimplemented wav codec: " + wavCodec);
+			if (Xnb.get7BitEncodedInt(buffer) != 1) {
+				throw new XnbException("primary asset is null; this shouldn't happen");
 			}
-
-			int channels = buffer.getShort() & 0xffff;
-			int samplesPerSecond = buffer.getInt();
-			int averageBytesPerSecond = buffer.getInt();
-			int blockAlign = buffer.getShort() & 0xffff;
-			int bitsPerSample = buffer.getShort() & 0xffff;
-			buffer.getShort(); // Unknown
-			int dataChunkSize = buffer.getInt();
-
-			// Note that the samples are written directly from the source buffer
-
-			// Create format header
-			ByteBuffer writeBuffer = ByteBuffer.allocate(wavHeaderSize);
-			writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			writeBuffer.put(RIFF);
-			writeBuffer.putInt(dataChunkSize + 36);
-			writeBuffer.put(WAVE);
-			writeBuffer.put(fmt);
-			writeBuffer.putInt(16);
-			writeBuffer.putShort((short) 1);
-			writeBuffer.putShort((short) channels);
-			writeBuffer.putInt(samplesPerSecond);
-			writeBuffer.putInt(averageBytesPerSecond);
-			writeBuffer.putShort((short) blockAlign);
-			writeBuffer.putShort((short) bitsPerSample);
-			writeBuffer.put(data);
-			writeBuffer.putInt(dataChunkSize);
-
-			FileOutputStream output = FileUtils.openOutputStream(new File(outputDirectory, baseFileName + ".wav"));
-
-			// Write header
-			output.write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
-			// Write samples
-			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), dataChunkSize);
-
-			output.close();
-			break;
+		} catch (BufferUnderflowException ex) {
+			throw new XnbException(endMessage);
 		}
-		case "Microsoft.Xna.Framework.Content.SpriteFontReader":
-		case "Microsoft.Xna.Framework.Content.EffectReader": {
-			return;
+		return typeReaderName;
+	}
+
+	/**
+	 * Reads the asset header, and the properties of the asset if its type has a reader.
+	 */
+	private void probeAsset(ByteBuffer buffer, XnbInfo info) throws XnbException {
+		info.typeReaderName = readAssetHeader(buffer, "asset header is not in the first frame");
+
+		AssetReader reader = readers.get(info.typeReaderName);
+		if (reader != null) {
+			try {
+				reader.probe(buffer, info);
+			} catch (BufferUnderflowException ex) {
+				throw new XnbException("asset header is not in the first frame");
+			}
 		}
-		default: {
+	}
+
+	/**
+	 * @param buffer The asset data, or the data of its first frame if compressed
+	 * @param decoder The decoder of the remaining frames, or null if not compressed
+	 * @param transferable Whether the buffer holds the contents of the input file as they are
+	 */
+	private void extractAsset(ByteBuffer buffer, LzxDecoder decoder, boolean transferable, File inputFile, File outputDirectory) throws XnbException, IOException {
+		String typeReaderName = readAssetHeader(buffer, "unexpected end of asset data");
+
+		long startTime = System.nanoTime();
+		AssetReader reader = readers.get(typeReaderName);
+		if (reader == null) {
 			throw new XnbException("unsupported asset type: " + typeReaderName);
 		}
-		}
+
+		String xnbFileName = inputFile.getName();
+		String baseFileName = xnbFileName.substring(0, xnbFileName.lastIndexOf('.'));
+		reader.read(new AssetInput(this, inputFile, buffer, decoder, transferable, outputDirectory, baseFileName, startTime));
 	}
 }
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+/**
+ * Describes the asset in an XNB file, as read by {@link XnbExtractor#probe(java.io.File)}
+ * without decompressing the whole file. Properties that don't apply to the
+ * type of the asset are zero.
+ */
+public class XnbInfo {
+	static final String TEXTURE_2D_READER = "Microsoft.Xna.Framework.Content.Texture2DReader";
+	static final String SOUND_EFFECT_READER = "Microsoft.Xna.Framework.Content.SoundEffectReader";
+	static final String SPRITE_FONT_READER = "Microsoft.Xna.Framework.Content.SpriteFontReader";
+	static final String EFFECT_READER = "Microsoft.Xna.Framework.Content.EffectReader";
+
+	String typeReaderName;
+	boolean compressed;
+	int compressedSize;
+	int decompressedSize;
+
+	// Texture2D
+	int surfaceFormat;
+	int width;
+	int height;
+	int mipCount;
+
+	// SoundEffect
+	int channels;
+	int samplesPerSecond;
+	int bitsPerSample;
+	int dataSize;
+
+	XnbInfo() {
+	}
+
+	/**
+	 * @return The name of the type reader of the primary asset, excluding assembly information
+	 */
+	public String getTypeReaderName() {
+		return typeReaderName;
+	}
+
+	public boolean isTexture() {
+		return TEXTURE_2D_READER.equals(typeReaderName);
+	}
+
+	public boolean isSound() {
+		return SOUND_EFFECT_READER.equals(typeReaderName);
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * @return The size of the XNB file, including the header
+	 */
+	public int getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * @return The size of the asset data once decompressed
+	 */
+	public int getDecompressedSize() {
+		return decompressedSize;
+	}
+
+	public int getSurfaceFormat() {
+		return surfaceFormat;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMipCount() {
+		return mipCount;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getSamplesPerSecond() {
+		return samplesPerSecond;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	/**
+	 * @return The size of the sample data
+	 */
+	public int getDataSize() {
+		return dataSize;
+	}
+
+	@Override
+	public String toString() {
+		if (isTexture())
+			return "Texture2D " + width + "x" + height + " (format " + surfaceFormat + ")";
+		if (isSound())
+			return "SoundEffect " + channels + "ch " + samplesPerSecond + "Hz " + bitsPerSample + "bit (" + dataSize + " bytes)";
+		return typeReaderName;
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HuffTableTest {
+	@Test
+	public void testCompleteCode() {
+		// Every code of the table bits or less
+		byte[] lengths = new byte[20];
+		for (int i = 0; i < 16; i++)
+			lengths[i] = 4;
+		check(20, 6, 0, lengths, 1);
+		check(20, 4, 0, lengths, 2);
+
+		check(512, 10, 256, randomLengths(512, 16, 3), 3);
+		check(250, 8, 0, randomLengths(250, 16, 4), 4);
+	}
+
+	@Test
+	public void testIncompleteCode() {
+		// Only 0 and 10 are assigned, 11 isn't
+		byte[] lengths = new byte[8];
+		lengths[3] = 1;
+		lengths[5] = 2;
+		check(8, 7, 0, lengths, 5);
+		assertInvalid(8, 7, lengths, 0x3);
+
+		// The same, with 110000000000 in a subtable of which the rest isn't assigned
+		lengths = new byte[8];
+		lengths[3] = 1;
+		lengths[5] = 2;
+		lengths[6] = 12;
+		check(8, 4, 0, lengths, 6);
+		assertInvalid(8, 4, lengths, 0x3);
+		assertInvalid(8, 4, lengths, 0x19);
+
+		// No codes at all, which is valid for trees that aren't used
+		HuffTable table = new HuffTable(8, 7);
+		table.makeDecodeTable();
+		assertInvalid(table, 0);
+	}
+
+	@Test
+	public void testOverSubscribedCode() {
+		byte[] lengths = new byte[8];
+		lengths[0] = lengths[1] = lengths[2] = 1;
+		assertOverSubscribed(8, 7, lengths);
+
+		lengths = new byte[512];
+		for (int i = 0; i < 512; i++)
+			lengths[i] = 8;
+		assertOverSubscribed(512, 10, lengths);
+
+		// One code too many among the long ones
+		lengths = new byte[18];
+		for (int i = 0; i < 16; i++)
+			lengths[i] = (byte) (i + 1);
+		lengths[16] = lengths[17] = 16;
+		assertOverSubscribed(18, 4, lengths);
+	}
+
+	@Test
+	public void testLongCodes() {
+		// Lengths 1 to 16, the two longest of length 16
+		byte[] lengths = new byte[17];
+		for (int i = 0; i < 16; i++)
+			lengths[i] = (byte) (i + 1);
+		lengths[16] = 16;
+		check(17, 4, 0, lengths, 7);
+		check(17, 10, 0, lengths, 8);
+
+		// Skewed frequencies, such that many codes are longer than the table bits
+		for (int tableBits = 4; tableBits <= 12; tableBits += 2)
+			check(512, tableBits, 256, randomLengths(512, 16, 9), 10 + tableBits);
+	}
+
+	@Test
+	public void testPairedLiterals() {
+		// Literals of which some fit two to a lookup and some don't, and
+		// matches as short as the literals
+		byte[] lengths = new byte[512];
+		for (int i = 0; i < 8; i++)
+			lengths[i] = 4;
+		for (int i = 8; i < 16; i++)
+			lengths[i] = 6;
+		for (int i = 16; i < 48; i++)
+			lengths[i] = 8;
+		for (int i = 256; i < 264; i++)
+			lengths[i] = 5;
+		HuffTable table = new HuffTable(512, 10, 256);
+		System.arraycopy(lengths, 0, table.getLength(), 0, lengths.length);
+		table.makeDecodeTable();
+
+		int[] symbols = randomSymbols(lengths, 20000, 12);
+		LzxBuffer buffer = encode(lengths, symbols);
+		int pairs = 0;
+		for (int i = 0; i < symbols.length; i++) {
+			int entry = table.readHuffEntry(buffer);
+			assertEquals(symbols[i], HuffTable.symbol(entry));
+			int secondLength = HuffTable.secondLength(entry);
+			if (secondLength != 0 && i + 1 < symbols.length) {
+				assertTrue(symbols[i] < 256);
+				assertEquals(symbols[++i], HuffTable.secondSymbol(entry));
+				assertEquals(lengths[symbols[i]], secondLength);
+				buffer.removeBits(secondLength);
+				pairs++;
+			}
+		}
+		assertTrue(pairs > 0);
+	}
+
+	/**
+	 * Decodes a random sequence of the symbols that have codes, and checks that
+	 * the table decodes the same symbols.
+	 */
+	private static void check(int maxSymbols, int tableBits, int pairedSymbols, byte[] lengths, long seed) {
+		HuffTable table = new HuffTable(maxSymbols, tableBits, pairedSymbols);
+		System.arraycopy(lengths, 0, table.getLength(), 0, lengths.length);
+		table.makeDecodeTable();
+
+		int[] symbols = randomSymbols(lengths, 5000, seed);
+		LzxBuffer buffer = encode(lengths, symbols);
+		for (int i = 0; i < symbols.length; i++)
+			assertEquals("symbol " + i, symbols[i], table.readHuffSym(buffer));
+	}
+
+	private static void assertInvalid(int maxSymbols, int tableBits, byte[] lengths, int code) {
+		HuffTable table = new HuffTable(maxSymbols, tableBits);
+		System.arraycopy(lengths, 0, table.getLength(), 0, lengths.length);
+		table.makeDecodeTable();
+		assertInvalid(table, code);
+	}
+
+	/** Checks that the code, followed by ones, isn't valid */
+	private static void assertInvalid(HuffTable table, int code) {
+		int length = 32 - Integer.numberOfLeadingZeros(code);
+		int bits = code << (16 - length) | ((1 << (16 - length)) - 1);
+		LzxBuffer buffer = new LzxBuffer();
+		buffer.start(new byte[] { (byte) bits, (byte) (bits >> 8), 0, 0 }, 0, 4);
+		try {
+			table.readHuffSym(buffer);
+			fail("decoded an invalid code");
+		} catch (RuntimeException expected) {
+			assertEquals("invalid Huffman code", expected.getMessage());
+		}
+	}
+
+	private static void assertOverSubscribed(int maxSymbols, int tableBits, byte[] lengths) {
+		HuffTable table = new HuffTable(maxSymbols, tableBits);
+		System.arraycopy(lengths, 0, table.getLength(), 0, lengths.length);
+		try {
+			table.makeDecodeTable();
+			fail("built the table of an over-subscribed code");
+		} catch (RuntimeException expected) {
+			assertEquals("over-subscribed Huffman code", expected.getMessage());
+		}
+	}
+
+	/** Lengths of a code for skewed random frequencies */
+	private static byte[] randomLengths(int count, int maxLength, long seed) {
+		Random random = new Random(seed);
+		int[] frequencies = new int[count];
+		for (int i = 0; i < count; i++) {
+			double weight = Math.pow(random.nextDouble(), 6);
+			frequencies[i] = random.nextInt(8) == 0 ? 0 : 1 + (int) (weight * 1000000);
+		}
+		return LzxEncoder.lengths(frequencies, maxLength);
+	}
+
+	private static int[] randomSymbols(byte[] lengths, int count, long seed) {
+		Random random = new Random(seed);
+		int[] symbols = new int[count];
+		for (int i = 0; i < count; i++) {
+			int symbol;
+			do {
+				symbol = random.nextInt(lengths.length);
+			} while (lengths[symbol] == 0);
+			symbols[i] = symbol;
+		}
+		return symbols;
+	}
+
+	/** Writes the canonical codes of the symbols, 16 bit little endian words with the most significant bit first */
+	private static LzxBuffer encode(byte[] lengths, int[] symbols) {
+		int[] codes = LzxEncoder.codes(lengths);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int bitBuffer = 0, bitCount = 0;
+		for (int symbol : symbols) {
+			for (int i = lengths[symbol] - 1; i >= 0; i--) {
+				bitBuffer = bitBuffer << 1 | (codes[symbol] >>> i & 1);
+				if (++bitCount == 16) {
+					output.write(bitBuffer);
+					output.write(bitBuffer >> 8);
+					bitBuffer = bitCount = 0;
+				}
+			}
+		}
+		bitBuffer <<= 16 - bitCount;
+		output.write(bitBuffer);
+		output.write(bitBuffer >> 8);
+		byte[] data = output.toByteArray();
+		LzxBuffer buffer = new LzxBuffer();
+		buffer.start(data, 0, data.length);
+		return buffer;
+	}
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.antag99.textract.extract.LzxEncoder.BlockType;
+
+public class LzxDecoderTest {
+	private static final int HEADER_SIZE = 14;
+	private static final int FRAME_SIZE = 0x8000;
+
+	@Test
+	public void testSingleFrame() {
+		check(new LzxEncoder(), texture(64, 64, 1));
+		check(new LzxEncoder(), noise(64, 64, 1));
+	}
+
+	@Test
+	public void testManyFrames() {
+		check(new LzxEncoder()
+				.block(BlockType.VERBATIM, 50000)
+				.block(BlockType.VERBATIM, 70000)
+				.block(BlockType.VERBATIM, 20000), texture(256, 256, 2));
+	}
+
+	@Test
+	public void testUncompressedBlocks() {
+		// The old decoder reads the repeated offsets of uncompressed blocks as signed bytes
+		check(new LzxEncoder()
+				.maxOffset(127)
+				.block(BlockType.VERBATIM, 10000)
+				.block(BlockType.UNCOMPRESSED, 4097)
+				.block(BlockType.VERBATIM, 30000)
+				.block(BlockType.UNCOMPRESSED, 40001)
+				.block(BlockType.ALIGNED, 20000)
+				.block(BlockType.UNCOMPRESSED, 3)
+				.block(BlockType.VERBATIM, 100000), text(150000, 3));
+	}
+
+	@Test
+	public void testAlignedBlocks() {
+		check(new LzxEncoder()
+				.block(BlockType.ALIGNED, 100000)
+				.block(BlockType.VERBATIM, 30000)
+				.block(BlockType.ALIGNED, 200000), texture(320, 256, 4));
+	}
+
+	@Test
+	public void testOddFinalFrame() {
+		byte[] data = text(2 * FRAME_SIZE + 12345, 5);
+		check(new LzxEncoder(), data);
+		check(new LzxEncoder().block(BlockType.UNCOMPRESSED, data.length), data);
+	}
+
+	@Test
+	public void testReusedDecoder() {
+		// A file that fills the window and leaves lengths for most of the elements
+		byte[] first = new LzxEncoder().block(BlockType.ALIGNED, 100000).xnb(texture(128, 256, 6));
+		// A small file with different trees, following an uncompressed block of odd length
+		byte[] secondData = text(5000, 7);
+		byte[] second = new LzxEncoder()
+				.maxOffset(127)
+				.block(BlockType.UNCOMPRESSED, 1001)
+				.block(BlockType.VERBATIM, 4000).xnb(secondData);
+		byte[] fresh = decompress(new LzxDecoder(), second);
+		assertArrayEquals(secondData, fresh);
+
+		LzxDecoder decoder = DecoderCache.get().decoder();
+		decompressFrames(decoder, first);
+		assertArrayEquals("frames after frames", fresh, decompressFrames(decoder, second));
+		decompress(decoder, first);
+		assertArrayEquals("whole stream after whole stream", fresh, decompress(decoder, second));
+		decompressFrames(decoder, first);
+		assertArrayEquals("whole stream after frames", fresh, decompress(decoder, second));
+		decompress(decoder, first);
+		assertArrayEquals("frames after whole stream", fresh, decompressFrames(decoder, second));
+	}
+
+	@Test
+	public void testMatchBeforeStart() {
+		byte[] data = text(50000, 8);
+		// A match whose offset reaches 100 bytes before the start of the data
+		byte[] xnb = new LzxEncoder().match(1000, 1100, 20).xnb(data);
+
+		LzxDecoder decoder = DecoderCache.get().decoder();
+		try {
+			decompress(decoder, xnb);
+			fail("whole stream");
+		} catch (RuntimeException expected) {
+		}
+		// A reused decoder has the data of the previous file where the match
+		// reaches, which must not be copied either
+		decompressFrames(decoder, new LzxEncoder().xnb(text(100000, 9)));
+		try {
+			decompressFrames(decoder, xnb);
+			fail("frames");
+		} catch (RuntimeException expected) {
+		}
+		try {
+			decompressFrames(new LzxDecoder(), xnb);
+			fail("frames of a new decoder");
+		} catch (RuntimeException expected) {
+		}
+	}
+
+	/**
+	 * Checks that the old decoder decompresses the XNB file of the data to the
+	 * data, and that the current decoder decompresses it to the same bytes,
+	 * whether it decompresses the stream as a whole or one frame at a time.
+	 */
+	static void check(LzxEncoder encoder, byte[] data) {
+		byte[] xnb = encoder.xnb(data);
+		byte[] baseline = decompressBaseline(xnb);
+		assertArrayEquals("baseline", data, baseline);
+		assertArrayEquals("whole stream", baseline, decompress(new LzxDecoder(), xnb));
+		assertArrayEquals("frames", baseline, decompressFrames(new LzxDecoder(), xnb));
+		assertArrayEquals("direct input", baseline, decompress(new LzxDecoder(), direct(xnb)));
+	}
+
+	static byte[] decompressBaseline(byte[] xnb) {
+		ByteBuffer header = ByteBuffer.wrap(xnb).order(ByteOrder.LITTLE_ENDIAN);
+		// The old decoder reads ahead of the end of the data
+		ByteBuffer input = ByteBuffer.allocate(xnb.length + 8).put(xnb);
+		input.position(HEADER_SIZE);
+		byte[] output = new byte[header.getInt(10)];
+		new BaselineLzxDecoder().decompress(input, header.getInt(6) - HEADER_SIZE,
+				ByteBuffer.wrap(output), output.length);
+		return output;
+	}
+
+	/** Decompresses the whole stream into an array, which the decoder then uses as its window */
+	static byte[] decompress(LzxDecoder decoder, byte[] xnb) {
+		return decompress(decoder, ByteBuffer.wrap(xnb));
+	}
+
+	static byte[] decompress(LzxDecoder decoder, ByteBuffer xnb) {
+		xnb.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] output = new byte[xnb.getInt(10)];
+		xnb.position(HEADER_SIZE);
+		decoder.decompress(xnb, xnb.getInt(6) - HEADER_SIZE, ByteBuffer.wrap(output), output.length);
+		return output;
+	}
+
+	/** Decompresses the stream one frame at a time, through the window of the decoder */
+	static byte[] decompressFrames(LzxDecoder decoder, byte[] xnb) {
+		ByteBuffer input = ByteBuffer.wrap(xnb).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer output = ByteBuffer.allocate(input.getInt(10));
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+		input.position(HEADER_SIZE);
+		decoder.start(input, input.getInt(6) - HEADER_SIZE);
+		while (decoder.decompressFrame(frame) != -1) {
+			frame.flip();
+			output.put(frame);
+			frame.clear();
+		}
+		return output.array();
+	}
+
+	/** Copies the file into a buffer that isn't backed by an array, like a mapped file */
+	static ByteBuffer direct(byte[] xnb) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(xnb.length);
+		buffer.put(xnb).clear();
+		return buffer;
+	}
+
+	/**
+	 * Creates the data of a texture asset, whose pixels repeat tiles at
+	 * varying distances, with runs of a single color and patches of noise.
+	 */
+	static byte[] texture(int width, int height, long seed) {
+		Random random = new Random(seed);
+		ByteBuffer data = textureHeader(width, height);
+
+		int[] palette = new int[16];
+		for (int i = 0; i < palette.length; i++)
+			palette[i] = random.nextInt() | 0xff000000;
+		int rowSize = width * 4;
+		int start = data.position();
+		for (int y = 0; y < height; y++) {
+			int kind = random.nextInt(8);
+			if (kind < 3 && y > 0) {
+				// Repeat a row from up to 48 rows above
+				int above = 1 + random.nextInt(Math.min(y, 48));
+				for (int i = 0; i < rowSize; i++)
+					data.put(data.get(start + (y - above) * rowSize + i));
+				continue;
+			}
+			for (int x = 0; x < width;) {
+				int run = 1 + random.nextInt(kind == 3 ? 4 : 24);
+				int color = kind == 4 ? random.nextInt() : palette[random.nextInt(palette.length)];
+				for (int i = 0; i < run && x < width; i++, x++)
+					data.putInt(kind == 5 ? palette[(x >> 3) & 15] : color);
+			}
+		}
+		return trim(data);
+	}
+
+	/**
+	 * Creates the data of a texture asset whose pixels are noise of a skewed
+	 * distribution, such that nearly all of it is coded as short literals.
+	 */
+	static byte[] noise(int width, int height, long seed) {
+		Random random = new Random(seed);
+		ByteBuffer data = textureHeader(width, height);
+		for (int i = width * height * 4; i > 0; i--)
+			data.put((byte) (random.nextInt(16) * random.nextInt(16)));
+		return trim(data);
+	}
+
+	private static ByteBuffer textureHeader(int width, int height) {
+		String reader = "Microsoft.Xna.Framework.Content.Texture2DReader";
+		ByteBuffer data = ByteBuffer.allocate(64 + reader.length() + width * height * 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		data.put((byte) 1).put((byte) reader.length()).put(reader.getBytes()).putInt(0);
+		data.put((byte) 0).put((byte) 1);
+		data.putInt(0).putInt(width).putInt(height).putInt(1).putInt(width * height * 4);
+		return data;
+	}
+
+	/** Creates text from a small vocabulary, with long runs and binary noise */
+	static byte[] text(int length, long seed) {
+		Random random = new Random(seed);
+		String[] words = new String[64];
+		for (int i = 0; i < words.length; i++) {
+			StringBuilder word = new StringBuilder();
+			for (int j = 1 + random.nextInt(10); j > 0; j--)
+				word.append((char) ('a' + random.nextInt(26)));
+			words[i] = word.toString();
+		}
+		byte[] data = new byte[length];
+		int position = 0;
+		while (position < length) {
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				byte value = (byte) random.nextInt();
+				for (int i = random.nextInt(300); i > 0 && position < length; i--)
+					data[position++] = value;
+			} else if (kind == 1) {
+				for (int i = random.nextInt(100); i > 0 && position < length; i--)
+					data[position++] = (byte) random.nextInt();
+			} else {
+				byte[] word = (words[random.nextInt(words.length)] + " ").getBytes();
+				for (int i = 0; i < word.length && position < length; i++)
+					data[position++] = word[i];
+			}
+		}
+		return data;
+	}
+
+	private static byte[] trim(ByteBuffer data) {
+		byte[] result = new byte[data.position()];
+		data.flip();
+		data.get(result);
+		return result;
+	}
+}
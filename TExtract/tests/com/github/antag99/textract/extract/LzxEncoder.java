@@ -0,0 +1,547 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Compresses data into LZX frames the way XNB files store them, such that the
+ * decoders can be tested with streams of known content. The blocks of the
+ * stream are listed up front; matches are found greedily, and the repeated
+ * offsets are used whenever they match.
+ */
+class LzxEncoder {
+	enum BlockType {
+		VERBATIM(1), ALIGNED(2), UNCOMPRESSED(3);
+
+		final int id;
+
+		BlockType(int id) {
+			this.id = id;
+		}
+	}
+
+	private static final int FRAME_SIZE = 0x8000;
+	private static final int WINDOW_SIZE = 0x10000;
+	private static final int MIN_MATCH = 2;
+	private static final int MAX_MATCH = 257;
+	private static final int NUM_CHARS = 256;
+	/** The main tree of a 64 KB window has 32 position slots */
+	private static final int MAIN_ELEMENTS = NUM_CHARS + 32 * 8;
+	private static final int LENGTH_ELEMENTS = 249;
+	private static final int PRETREE_ELEMENTS = 20;
+	private static final int ALIGNED_ELEMENTS = 8;
+
+	private static final int HASH_BITS = 15;
+	private static final int MAX_CHAIN = 64;
+
+	private static final int[] positionBase = new int[33];
+	private static final int[] extraBits = new int[33];
+
+	static {
+		for (int i = 0, j = 0; i < 33; i++) {
+			extraBits[i] = i < 4 ? 0 : (i - 2) >> 1;
+			positionBase[i] = j;
+			j += 1 << extraBits[i];
+		}
+	}
+
+	private final List<BlockType> blockTypes = new ArrayList<BlockType>();
+	private final List<Integer> blockLengths = new ArrayList<Integer>();
+	private final Map<Integer, int[]> forcedMatches = new HashMap<Integer, int[]>();
+	private int maxOffset = WINDOW_SIZE - 3;
+
+	/**
+	 * Adds a block to the stream; the data that the listed blocks don't cover
+	 * goes into a block of the same type as the last one.
+	 */
+	LzxEncoder block(BlockType type, int length) {
+		blockTypes.add(type);
+		blockLengths.add(length);
+		return this;
+	}
+
+	/**
+	 * Limits the offsets of the matches, which the old decoder needs for
+	 * streams with uncompressed blocks, as it reads their repeated offsets
+	 * as signed bytes.
+	 */
+	LzxEncoder maxOffset(int maxOffset) {
+		this.maxOffset = maxOffset;
+		return this;
+	}
+
+	/**
+	 * Makes the encoder emit a match at the given position, even if it
+	 * doesn't match the data, or refers to data before the start of it.
+	 */
+	LzxEncoder match(int position, int offset, int length) {
+		forcedMatches.put(position, new int[] { offset, length });
+		return this;
+	}
+
+	/** Compresses the data of an XNB file, and prepends the header of the file */
+	byte[] xnb(byte[] data) {
+		byte[] frames = encode(data);
+		ByteBuffer file = ByteBuffer.allocate(14 + frames.length).order(ByteOrder.LITTLE_ENDIAN);
+		file.put((byte) 'X').put((byte) 'N').put((byte) 'B').put((byte) 'w');
+		file.put((byte) 5).put((byte) 0x80);
+		file.putInt(file.capacity()).putInt(data.length);
+		file.put(frames);
+		return file.array();
+	}
+
+	/** Compresses the data into a stream of frames */
+	byte[] encode(byte[] data) {
+		FrameWriter writer = new FrameWriter();
+		Matcher matcher = new Matcher(data);
+		int[] repeats = { 1, 1, 1 };
+		byte[] mainLengths = new byte[MAIN_ELEMENTS];
+		byte[] lengthLengths = new byte[LENGTH_ELEMENTS];
+		boolean pad = false;
+
+		// No intel E8 translation
+		writer.bits(0, 1);
+
+		int position = 0;
+		for (int i = 0; position < data.length; i++) {
+			BlockType type = i < blockTypes.size() ? blockTypes.get(i)
+					: blockTypes.isEmpty() ? BlockType.VERBATIM : blockTypes.get(blockTypes.size() - 1);
+			int length = i < blockLengths.size() ? blockLengths.get(i) : data.length - position;
+			length = Math.min(length, data.length - position);
+			if (length <= 0)
+				continue;
+
+			if (pad) {
+				writer.bytes(new byte[1], 0, 1);
+			}
+
+			writer.bits(type.id, 3);
+			writer.bits(length >> 8, 16);
+			writer.bits(length & 0xff, 8);
+
+			if (type == BlockType.UNCOMPRESSED) {
+				writer.alignForUncompressed();
+				byte[] header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN)
+						.putInt(repeats[0]).putInt(repeats[1]).putInt(repeats[2]).array();
+				writer.bytes(header, 0, header.length);
+				writer.data(data, position, length);
+				matcher.insert(position, position + length);
+				pad = (length & 1) == 1;
+			} else {
+				List<int[]> tokens = tokenize(data, position, position + length, matcher, repeats);
+				writeBlock(writer, type, tokens, mainLengths, lengthLengths, position);
+				pad = false;
+			}
+			position += length;
+		}
+
+		writer.finish(position);
+		return writer.frames.toByteArray();
+	}
+
+	/**
+	 * Splits a block into literals and matches; a literal is a token of one
+	 * element, and a match is the main element, the length footer, the
+	 * position slot and the remainder of the formatted offset.
+	 */
+	private List<int[]> tokenize(byte[] data, int start, int end, Matcher matcher, int[] repeats) {
+		List<int[]> tokens = new ArrayList<int[]>();
+		int position = start;
+		while (position < end) {
+			// Matches can't cross frames
+			int limit = Math.min(end, (position / FRAME_SIZE + 1) * FRAME_SIZE);
+			int maxLength = Math.min(MAX_MATCH, limit - position);
+
+			int offset = 0, length = 0;
+			int[] forced = forcedMatches.get(position);
+			if (forced != null) {
+				offset = forced[0];
+				length = forced[1];
+			} else if (maxLength >= MIN_MATCH) {
+				// Prefer the repeated offsets, which are cheaper
+				for (int r = 0; r < 3; r++) {
+					int candidate = matcher.length(position, repeats[r], maxLength);
+					if (candidate > length) {
+						offset = repeats[r];
+						length = candidate;
+					}
+				}
+				int[] found = matcher.find(position, maxLength, maxOffset);
+				if (found != null && found[1] > length + 1) {
+					offset = found[0];
+					length = found[1];
+				}
+			}
+
+			if (length >= MIN_MATCH) {
+				tokens.add(match(offset, length, repeats));
+				matcher.insert(position, position + length);
+				position += length;
+			} else {
+				tokens.add(new int[] { data[position] & 0xff });
+				matcher.insert(position, position + 1);
+				position++;
+			}
+		}
+		return tokens;
+	}
+
+	private static int[] match(int offset, int length, int[] repeats) {
+		int slot, remainder = 0;
+		if (offset == repeats[0]) {
+			slot = 0;
+		} else if (offset == repeats[1]) {
+			slot = 1;
+			repeats[1] = repeats[0];
+			repeats[0] = offset;
+		} else if (offset == repeats[2]) {
+			slot = 2;
+			repeats[2] = repeats[0];
+			repeats[0] = offset;
+		} else {
+			int formatted = offset + 2;
+			slot = 3;
+			while (slot < 32 && positionBase[slot + 1] <= formatted)
+				slot++;
+			remainder = formatted - positionBase[slot];
+			repeats[2] = repeats[1];
+			repeats[1] = repeats[0];
+			repeats[0] = offset;
+		}
+		int header = Math.min(length - MIN_MATCH, 7);
+		int footer = header == 7 ? length - MIN_MATCH - 7 : -1;
+		return new int[] { NUM_CHARS + (slot << 3 | header), footer, slot, remainder, length };
+	}
+
+	private static void writeBlock(FrameWriter writer, BlockType type, List<int[]> tokens,
+			byte[] mainLengths, byte[] lengthLengths, int position) {
+		boolean aligned = type == BlockType.ALIGNED;
+		int[] mainFrequencies = new int[MAIN_ELEMENTS];
+		int[] lengthFrequencies = new int[LENGTH_ELEMENTS];
+		int[] alignedFrequencies = new int[ALIGNED_ELEMENTS];
+		for (int[] token : tokens) {
+			mainFrequencies[token[0]]++;
+			if (token.length > 1) {
+				if (token[1] >= 0)
+					lengthFrequencies[token[1]]++;
+				if (aligned && extraBits[token[2]] >= 3)
+					alignedFrequencies[token[3] & 7]++;
+			}
+		}
+
+		byte[] mainCode = lengths(mainFrequencies, 16);
+		byte[] lengthCode = lengths(lengthFrequencies, 16);
+		byte[] alignedCode = lengths(alignedFrequencies, 7);
+		if (aligned) {
+			for (int i = 0; i < ALIGNED_ELEMENTS; i++)
+				writer.bits(alignedCode[i], 3);
+		}
+		writeLengths(writer, mainLengths, mainCode, 0, NUM_CHARS);
+		writeLengths(writer, mainLengths, mainCode, NUM_CHARS, MAIN_ELEMENTS);
+		writeLengths(writer, lengthLengths, lengthCode, 0, LENGTH_ELEMENTS);
+
+		int[] mainCodes = codes(mainCode);
+		int[] lengthCodes = codes(lengthCode);
+		int[] alignedCodes = codes(alignedCode);
+		for (int[] token : tokens) {
+			writer.bits(mainCodes[token[0]], mainCode[token[0]]);
+			if (token.length == 1) {
+				writer.advance(++position);
+				continue;
+			}
+			if (token[1] >= 0)
+				writer.bits(lengthCodes[token[1]], lengthCode[token[1]]);
+			int extra = extraBits[token[2]];
+			int remainder = token[3];
+			if (aligned && extra >= 3) {
+				writer.bits(remainder >> 3, extra - 3);
+				writer.bits(alignedCodes[remainder & 7], alignedCode[remainder & 7]);
+			} else {
+				writer.bits(remainder, extra);
+			}
+			position += token[4];
+			writer.advance(position);
+		}
+	}
+
+	/**
+	 * Writes the code lengths of a range of elements as differences to their
+	 * previous lengths, coded with a pretree.
+	 */
+	private static void writeLengths(FrameWriter writer, byte[] previous, byte[] next, int first, int last) {
+		// Pretree symbols followed by their extra bits: {symbol, bits, count, symbol}
+		List<int[]> symbols = new ArrayList<int[]>();
+		int[] frequencies = new int[PRETREE_ELEMENTS];
+		for (int x = first; x < last;) {
+			int run = 1;
+			while (x + run < last && next[x + run] == next[x])
+				run++;
+
+			if (next[x] == 0 && run >= 20) {
+				run = Math.min(run, 51);
+				symbols.add(new int[] { 18, run - 20, 5 });
+			} else if (next[x] == 0 && run >= 4) {
+				run = Math.min(run, 19);
+				symbols.add(new int[] { 17, run - 4, 4 });
+			} else if (run >= 4) {
+				run = Math.min(run, 5);
+				int delta = (previous[x] - next[x] + 17) % 17;
+				symbols.add(new int[] { 19, run - 4, 1, delta });
+				frequencies[delta]++;
+			} else {
+				run = 1;
+				symbols.add(new int[] { (previous[x] - next[x] + 17) % 17 });
+			}
+			frequencies[symbols.get(symbols.size() - 1)[0]]++;
+			x += run;
+		}
+
+		byte[] pretree = lengths(frequencies, 15);
+		int[] codes = codes(pretree);
+		for (int i = 0; i < PRETREE_ELEMENTS; i++)
+			writer.bits(pretree[i], 4);
+		for (int[] symbol : symbols) {
+			writer.bits(codes[symbol[0]], pretree[symbol[0]]);
+			if (symbol.length > 1)
+				writer.bits(symbol[1], symbol[2]);
+			if (symbol.length > 3)
+				writer.bits(codes[symbol[3]], pretree[symbol[3]]);
+		}
+		System.arraycopy(next, first, previous, first, last - first);
+	}
+
+	/**
+	 * Computes the lengths of a Huffman code for the frequencies, limited to
+	 * the maximum length by flattening the frequencies until it fits.
+	 */
+	static byte[] lengths(int[] frequencies, int maxLength) {
+		int[] weights = frequencies.clone();
+		while (true) {
+			byte[] lengths = huffman(weights);
+			int longest = 0;
+			for (byte length : lengths)
+				longest = Math.max(longest, length);
+			if (longest <= maxLength)
+				return lengths;
+			for (int i = 0; i < weights.length; i++)
+				if (weights[i] != 0)
+					weights[i] = (weights[i] >> 1) | 1;
+		}
+	}
+
+	private static byte[] huffman(int[] weights) {
+		final int count = weights.length;
+		byte[] lengths = new byte[count];
+		// Nodes are leaves below the count, and internal nodes above it
+		final long[] nodeWeights = new long[count * 2];
+		int[] parents = new int[count * 2];
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(count, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int order = Long.compare(nodeWeights[a], nodeWeights[b]);
+				return order != 0 ? order : a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < count; i++) {
+			if (weights[i] != 0) {
+				nodeWeights[i] = weights[i];
+				queue.add(i);
+			}
+		}
+		if (queue.size() == 1) {
+			// The decoders reject incomplete codes, so give the only symbol a sibling
+			int symbol = queue.poll();
+			lengths[symbol] = lengths[symbol == 0 ? 1 : 0] = 1;
+			return lengths;
+		}
+		int next = count;
+		while (queue.size() > 1) {
+			int a = queue.poll(), b = queue.poll();
+			nodeWeights[next] = nodeWeights[a] + nodeWeights[b];
+			parents[a] = parents[b] = next;
+			queue.add(next++);
+		}
+		int root = next - 1;
+		for (int i = 0; i < count; i++) {
+			if (weights[i] == 0)
+				continue;
+			int depth = 0;
+			for (int node = i; node != root; node = parents[node])
+				depth++;
+			lengths[i] = (byte) depth;
+		}
+		return lengths;
+	}
+
+	/** Assigns canonical codes to the lengths, shorter codes and lower symbols first */
+	static int[] codes(byte[] lengths) {
+		int[] codes = new int[lengths.length];
+		int code = 0;
+		for (int length = 1; length <= 16; length++) {
+			for (int symbol = 0; symbol < lengths.length; symbol++)
+				if (lengths[symbol] == length)
+					codes[symbol] = code++;
+			code <<= 1;
+		}
+		return codes;
+	}
+
+	/** Finds matches with hash chains of the three bytes at each position */
+	private static class Matcher {
+		private final byte[] data;
+		private final int[] head = new int[1 << HASH_BITS];
+		private final int[] previous;
+
+		Matcher(byte[] data) {
+			this.data = data;
+			this.previous = new int[data.length];
+			Arrays.fill(head, -1);
+		}
+
+		private int hash(int position) {
+			int value = (data[position] & 0xff) << 16 | (data[position + 1] & 0xff) << 8 | data[position + 2] & 0xff;
+			return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+		}
+
+		void insert(int start, int end) {
+			for (int position = start; position < end && position + 2 < data.length; position++) {
+				int hash = hash(position);
+				previous[position] = head[hash];
+				head[hash] = position;
+			}
+		}
+
+		int length(int position, int offset, int maxLength) {
+			if (offset > position)
+				return 0;
+			int length = 0;
+			while (length < maxLength && data[position + length] == data[position + length - offset])
+				length++;
+			return length;
+		}
+
+		int[] find(int position, int maxLength, int maxOffset) {
+			if (maxLength < 3 || position + 2 >= data.length)
+				return null;
+			int[] best = null;
+			int candidate = head[hash(position)];
+			for (int chain = 0; candidate >= 0 && chain < MAX_CHAIN; chain++) {
+				int offset = position - candidate;
+				if (offset > maxOffset)
+					break;
+				int length = length(position, offset, maxLength);
+				if (length >= 3 && (best == null || length > best[1]))
+					best = new int[] { offset, length };
+				candidate = previous[candidate];
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Writes the bitstream of frames, 16 bit little endian words with the
+	 * most significant bit first, starting over at every frame.
+	 */
+	private static class FrameWriter {
+		final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		private int bitBuffer;
+		private int bitCount;
+		private int frameStart;
+
+		void bits(int value, int count) {
+			for (int i = count - 1; i >= 0; i--) {
+				bitBuffer = bitBuffer << 1 | (value >>> i & 1);
+				if (++bitCount == 16) {
+					frame.write(bitBuffer & 0xff);
+					frame.write(bitBuffer >> 8 & 0xff);
+					bitBuffer = 0;
+					bitCount = 0;
+				}
+			}
+		}
+
+		/** Pads to the next word, or writes a whole word of padding if aligned */
+		void alignForUncompressed() {
+			bits(0, 16 - bitCount);
+		}
+
+		/** Writes raw bytes, which start at a word */
+		void bytes(byte[] data, int offset, int length) {
+			if (bitCount != 0)
+				throw new IllegalStateException("raw bytes must start at a word");
+			frame.write(data, offset, length);
+		}
+
+		/** Writes raw bytes of the output, from the given position of it */
+		void data(byte[] data, int position, int length) {
+			if (bitCount != 0)
+				throw new IllegalStateException("raw bytes must start at a word");
+			for (int i = 0; i < length; i++) {
+				frame.write(data[position + i]);
+				advance(position + i + 1);
+			}
+		}
+
+		/** Ends the frame once the output position reaches the end of it */
+		void advance(int position) {
+			if (position - frameStart == FRAME_SIZE)
+				endFrame(position);
+		}
+
+		void finish(int position) {
+			if (position > frameStart)
+				endFrame(position);
+		}
+
+		private void endFrame(int position) {
+			if (bitCount != 0)
+				bits(0, 16 - bitCount);
+			int frameSize = position - frameStart;
+			int blockSize = frame.size();
+			if (frameSize == FRAME_SIZE && blockSize < 0xFF00) {
+				frames.write(blockSize >> 8);
+				frames.write(blockSize & 0xff);
+			} else {
+				frames.write(0xFF);
+				frames.write(frameSize >> 8);
+				frames.write(frameSize & 0xff);
+				frames.write(blockSize >> 8);
+				frames.write(blockSize & 0xff);
+			}
+			frames.write(frame.toByteArray(), 0, blockSize);
+			frame.reset();
+			frameStart = position;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (C) 2014-2015 Anton Gustafsson
+ *
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.github.antag99.textract.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class LzxInputStreamTest {
+	@Test
+	public void testReadPastEnd() {
+		byte[] data = LzxDecoderTest.text(100000, 1);
+		LzxInputStream stream = open(new LzxEncoder().xnb(data));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = stream.read(buffer, 0, buffer.length)) != -1)
+			output.write(buffer, 0, count);
+		assertArrayEquals(data, output.toByteArray());
+
+		assertEquals(-1, stream.read());
+		assertEquals(-1, stream.read());
+		assertEquals(-1, stream.read(buffer, 0, buffer.length));
+		assertEquals(0, stream.available());
+	}
+
+	@Test
+	public void testReadBytesPastEnd() {
+		byte[] data = LzxDecoderTest.text(5000, 2);
+		LzxInputStream stream = open(new LzxEncoder().xnb(data));
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i] & 0xff, stream.read());
+		assertEquals(-1, stream.read());
+		assertEquals(-1, stream.read());
+	}
+
+	private static LzxInputStream open(byte[] xnb) {
+		ByteBuffer input = ByteBuffer.wrap(xnb).order(ByteOrder.LITTLE_ENDIAN);
+		input.position(14);
+		LzxDecoder decoder = new LzxDecoder();
+		decoder.start(input, input.getInt(6) - 14);
+		ByteBuffer frame = ByteBuffer.allocate(0x10000);
+		frame.flip();
+		return new LzxInputStream(decoder, frame);
+	}
+}